@@ -0,0 +1,119 @@
+package hudson.plugins.space_left;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SpaceLeftQueueTaskDispatcher#canTake} and {@link RequiredSpace#getRequiredSpace} on the queue
+ * dispatch path against cached slaves, without a running Jenkins.
+ * <p>
+ * Run with <code>mvn -Pbenchmark test-compile exec:java -Dexec.mainClass=org.openjdk.jmh.Main
+ * -Dexec.args="DispatchBenchmark -prof gc"</code> to get the allocation per call as well.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    @Param({"10", "300"})
+    public int nodes;
+
+    @Param({"10", "100", "1000"})
+    public int workspaces;
+
+    private String[] nodeNames;
+
+    private int next;
+
+    private final SpaceLeftQueueTaskDispatcher dispatcher = new SpaceLeftQueueTaskDispatcher();
+
+    /**
+     * stand-in for the projects in Jenkins
+     */
+    private final Map<String, Long> projects = new HashMap<String, Long>();
+
+    private final RequiredSpace.ProjectSpace projectSpace = new RequiredSpace.ProjectSpace() {
+        public long getSpaceNeeded(String projectName) {
+            Long spaceNeeded = projects.get(projectName);
+            return spaceNeeded != null ? spaceNeeded : 0L;
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        this.nodeNames = new String[this.nodes];
+        Map<String, String> nodeWorkspaces = new HashMap<String, String>();
+
+        for (int i = 0; i < this.workspaces; i++) {
+            String projectName = "project" + i;
+            this.projects.put(projectName, 1000000L);
+            nodeWorkspaces.put(i % 3 == 0 ? projectName + "@2" : projectName, projectName);
+        }
+
+        for (int i = 0; i < this.nodes; i++) {
+            this.nodeNames[i] = "node" + i;
+            WorkspaceIndex.get().put(this.nodeNames[i], nodeWorkspaces);
+        }
+    }
+
+    /**
+     * Keeps the snapshots fresh, so no refresh is requested from the running Jenkins there is none of.
+     */
+    @Setup(Level.Iteration)
+    public void refreshSnapshots() {
+        SpaceProbe.Result result = new SpaceProbe.Result(Long.MAX_VALUE / 2L, Long.MAX_VALUE, new HashMap<String, Long>());
+        for (String nodeName : this.nodeNames) {
+            FreeSpaceCache.get().update(nodeName, result);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (String nodeName : this.nodeNames) {
+            FreeSpaceCache.get().remove(nodeName);
+            WorkspaceIndex.get().removeNode(nodeName);
+        }
+    }
+
+    private String nextNodeName() {
+        String nodeName = this.nodeNames[this.next];
+        this.next = (this.next + 1) % this.nodeNames.length;
+        return nodeName;
+    }
+
+    @Benchmark
+    public void canTake(Blackhole blackhole) {
+        blackhole.consume(this.dispatcher.canTake(this.nextNodeName(), -1L, SpaceProbe.DEFAULT_LOCATION, null, -1L,
+                this.projectSpace));
+    }
+
+    @Benchmark
+    public void canTakeExcludingCurrentProject(Blackhole blackhole) {
+        blackhole.consume(this.dispatcher.canTake(this.nextNodeName(), 1000L, SpaceProbe.DEFAULT_LOCATION, "project1",
+                -1L, this.projectSpace));
+    }
+
+    @Benchmark
+    public long getRequiredSpace() {
+        return RequiredSpace.getRequiredSpace(WorkspaceIndex.get().getWorkspaces(this.nextNodeName()), null, this.projectSpace);
+    }
+}
@@ -0,0 +1,66 @@
+package hudson.plugins.space_left;
+
+import hudson.Util;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the refresh of a single slave by {@link SpaceProbe} against a {@link SimulatedRemoteFilePath}
+ * with the given round trip latency and number of workspace directories.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProbeBenchmark {
+
+    @Param({"0", "1000", "50000"})
+    public long latencyMicros;
+
+    @Param({"10", "100", "1000"})
+    public int workspaces;
+
+    private File root;
+
+    private SimulatedRemoteFilePath slave;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.root = Util.createTempDir();
+
+        for (int i = 0; i < this.workspaces; i++) {
+            File workspace = new File(this.root, "workspace/project" + i);
+            if (!workspace.mkdirs()) {
+                throw new IOException("could not create " + workspace);
+            }
+        }
+
+        this.slave = new SimulatedRemoteFilePath(this.root, this.latencyMicros);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        Util.deleteRecursive(this.root);
+    }
+
+    @Benchmark
+    public SpaceProbe.Result probe() throws IOException, InterruptedException {
+        return this.slave.act(new SpaceProbe());
+    }
+}
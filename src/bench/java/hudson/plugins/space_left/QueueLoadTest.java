@@ -0,0 +1,407 @@
+package hudson.plugins.space_left;
+
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.ItemGroup;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Slave;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.CauseOfBlockage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Simulates the queue maintenance of a large installation against {@link SpaceLeftQueueTaskDispatcher}, without
+ * a running Jenkins. Before every pass all slaves are probed through a {@link SimulatedRemoteFilePath} with the
+ * given latency on the {@link RefreshExecutor}, then every queued item is offered the slaves one after another,
+ * like the queue does, until one of them takes it. A part of the slaves is short of space and a part has never
+ * been measured, so all decisions of the dispatcher are taken.
+ * <p>
+ * The items are real {@link Queue.BuildableItem}s of stand-in projects with an estimated duration, offered to
+ * stand-in slaves through {@link SpaceLeftQueueTaskDispatcher#canTake(hudson.model.Node, Queue.BuildableItem)}, so
+ * the parameter parsing, the held space, the forecast of the declining free space and the reclaim requests are
+ * measured as well. Only the builds running on the slaves are not simulated, as they are found through Jenkins.
+ * <p>
+ * If a pass takes longer than <tt>maxPassMillis</tt> or needs more calls than <tt>maxCallsPerPass</tt>, the
+ * harness exits with 1 after all passes, so it can fail a release build.
+ * <p>
+ * Run with <code>mvn -Pbenchmark test-compile exec:java -Dexec.mainClass=hudson.plugins.space_left.QueueLoadTest
+ * -Dexec.args="-Dnodes=300 -Ditems=5000"</code>, all settings are optional:
+ * <ul>
+ * <li><tt>items</tt>: the number of queued items, 2000</li>
+ * <li><tt>nodes</tt>: the number of slaves, 300</li>
+ * <li><tt>workspaces</tt>: the number of workspaces per slave, 100</li>
+ * <li><tt>latencyMicros</tt>: the round trip time of a call to a slave, 1000</li>
+ * <li><tt>passes</tt>: the number of queue maintenances, 20</li>
+ * <li><tt>fullRatio</tt>: the part of the slaves without enough space, 0.3</li>
+ * <li><tt>unknownRatio</tt>: the part of the slaves that have never been measured, 0.05</li>
+ * <li><tt>parameterRatio</tt>: the part of the items giving the space needed by parameter, 0.1</li>
+ * <li><tt>declineBytes</tt>: the free space every measured slave loses per pass, 10000</li>
+ * <li><tt>maxPassMillis</tt>: the longest queue maintenance allowed, 0 for no limit</li>
+ * <li><tt>maxCallsPerPass</tt>: the most dispatcher calls allowed per queue maintenance, 0 for no limit</li>
+ * <li><tt>seed</tt>: the seed of the random choices, so runs can be compared, 1</li>
+ * </ul>
+ */
+public class QueueLoadTest {
+
+    private final int items;
+
+    private final int nodes;
+
+    private final int workspaces;
+
+    private final long latencyMicros;
+
+    private final int passes;
+
+    private final double fullRatio;
+
+    private final double unknownRatio;
+
+    private final double parameterRatio;
+
+    private final long declineBytes;
+
+    private final long maxPassMillis;
+
+    private final long maxCallsPerPass;
+
+    private final Random random;
+
+    private final SpaceLeftQueueTaskDispatcher dispatcher = new SpaceLeftQueueTaskDispatcher();
+
+    /**
+     * stand-in for the projects in Jenkins
+     */
+    private final Map<String, Long> projects = new HashMap<String, Long>();
+
+    private final RequiredSpace.ProjectSpace projectSpace = new RequiredSpace.ProjectSpace() {
+        public long getSpaceNeeded(String projectName) {
+            Long spaceNeeded = projects.get(projectName);
+            return spaceNeeded != null ? spaceNeeded : 0L;
+        }
+    };
+
+    private String[] nodeNames;
+
+    /**
+     * stand-ins for the slaves
+     */
+    private Slave[] slaves;
+
+    /**
+     * the queued items of the stand-in projects
+     */
+    private Queue.BuildableItem[] queue;
+
+    /**
+     * the free space every slave reports, or null if it is never measured
+     */
+    private Long[] usableSpaces;
+
+    private File root;
+
+    private SimulatedRemoteFilePath slave;
+
+    public QueueLoadTest(Map<String, String> settings) {
+        this.items = Integer.parseInt(get(settings, "items", "2000"));
+        this.nodes = Integer.parseInt(get(settings, "nodes", "300"));
+        this.workspaces = Integer.parseInt(get(settings, "workspaces", "100"));
+        this.latencyMicros = Long.parseLong(get(settings, "latencyMicros", "1000"));
+        this.passes = Integer.parseInt(get(settings, "passes", "20"));
+        this.fullRatio = Double.parseDouble(get(settings, "fullRatio", "0.3"));
+        this.unknownRatio = Double.parseDouble(get(settings, "unknownRatio", "0.05"));
+        this.parameterRatio = Double.parseDouble(get(settings, "parameterRatio", "0.1"));
+        this.declineBytes = Long.parseLong(get(settings, "declineBytes", "10000"));
+        this.maxPassMillis = Long.parseLong(get(settings, "maxPassMillis", "0"));
+        this.maxCallsPerPass = Long.parseLong(get(settings, "maxCallsPerPass", "0"));
+        this.random = new Random(Long.parseLong(get(settings, "seed", "1")));
+    }
+
+    private static String get(Map<String, String> settings, String name, String defaultValue) {
+        String value = settings.get(name);
+        return value != null ? value : System.getProperty(name, defaultValue);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (arg.startsWith("-D") && equals > 2) {
+                settings.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+
+        // read when the reclaimer is loaded, so the blocked items request a reclaim like in production
+        System.setProperty(WorkspaceReclaimer.class.getName() + ".enabled", "true");
+
+        QueueLoadTest loadTest = new QueueLoadTest(settings);
+        boolean passed;
+        loadTest.setUp();
+        try {
+            passed = loadTest.run();
+        } finally {
+            loadTest.tearDown();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    void setUp() throws IOException {
+        this.root = Util.createTempDir();
+
+        for (int i = 0; i < this.workspaces; i++) {
+            File workspace = new File(this.root, "workspace/project" + i);
+            if (!workspace.mkdirs()) {
+                throw new IOException("could not create " + workspace);
+            }
+        }
+
+        this.slave = new SimulatedRemoteFilePath(this.root, this.latencyMicros);
+
+        // all workspaces together need about 100 GB, full slaves have less
+        for (int i = 0; i < Math.max(this.workspaces, this.items); i++) {
+            this.projects.put("project" + i, 1000000000L);
+        }
+
+        this.nodeNames = new String[this.nodes];
+        this.slaves = new Slave[this.nodes];
+        this.usableSpaces = new Long[this.nodes];
+
+        for (int i = 0; i < this.nodes; i++) {
+            this.nodeNames[i] = "node" + i;
+            this.slaves[i] = mock(Slave.class);
+            when(this.slaves[i].getNodeName()).thenReturn(this.nodeNames[i]);
+
+            double kind = this.random.nextDouble();
+
+            if (kind < this.unknownRatio) {
+                this.usableSpaces[i] = null;
+            } else if (kind < this.unknownRatio + this.fullRatio) {
+                this.usableSpaces[i] = this.workspaces * 1000000000L / 2L;
+            } else {
+                this.usableSpaces[i] = this.workspaces * 1000000000L * 2L;
+            }
+        }
+
+        ItemGroup parent = mock(ItemGroup.class);
+        when(parent.getFullName()).thenReturn("");
+
+        this.queue = new Queue.BuildableItem[this.items];
+
+        for (int i = 0; i < this.items; i++) {
+            String projectName = "project" + i;
+
+            // the full name is final and derived from the parent and the name
+            AbstractProject project = mock(AbstractProject.class);
+            when(project.getParent()).thenReturn(parent);
+            when(project.getName()).thenReturn(projectName);
+            when(project.getEstimatedDuration()).thenReturn(60000L * (1 + this.random.nextInt(60)));
+
+            List<Action> actions = Collections.emptyList();
+            if (this.random.nextDouble() < this.parameterRatio) {
+                actions = Collections.<Action>singletonList(new ParametersAction(
+                        new StringParameterValue("REQUIRED_SPACE", String.valueOf(this.projects.get(projectName)))));
+            }
+
+            this.queue[i] = new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), project, actions));
+        }
+    }
+
+    void tearDown() throws IOException, InterruptedException {
+        for (String nodeName : this.nodeNames) {
+            FreeSpaceCache.get().remove(nodeName);
+            WorkspaceIndex.get().removeNode(nodeName);
+            RequiredSpaceMemo.get().removeNode(nodeName);
+            SpaceForecast.get().removeNode(nodeName);
+            SpaceLeftMetrics.get().removeNode(nodeName);
+        }
+        Util.deleteRecursive(this.root);
+    }
+
+    /**
+     * @return true, if no pass has exceeded the limits
+     */
+    boolean run() throws Exception {
+        long[] refreshTimes = new long[this.passes];
+        long[] maintenanceTimes = new long[this.passes];
+        long totalCalls = 0L;
+        long totalNotEnough = 0L;
+        long totalUnknown = 0L;
+        boolean passed = true;
+
+        System.out.println("items=" + this.items + " nodes=" + this.nodes + " workspaces=" + this.workspaces
+                + " latencyMicros=" + this.latencyMicros + " fullRatio=" + this.fullRatio
+                + " unknownRatio=" + this.unknownRatio);
+        System.out.println("pass\trefresh ms\tmaintenance ms\tcanTake calls\tnot enough\tunknown\tplaced\tunplaced");
+
+        for (int pass = 0; pass < this.passes; pass++) {
+            long start = System.nanoTime();
+            this.refresh(pass);
+            refreshTimes[pass] = System.nanoTime() - start;
+
+            // a build has left a new workspace on some slave, so the remembered totals are computed again
+            this.addWorkspace(this.nodeNames[this.random.nextInt(this.nodes)], pass);
+
+            Pass result = new Pass();
+            start = System.nanoTime();
+            this.maintain(result);
+            maintenanceTimes[pass] = System.nanoTime() - start;
+
+            totalCalls += result.calls;
+            totalNotEnough += result.notEnough;
+            totalUnknown += result.unknown;
+
+            System.out.println(pass + "\t" + millis(refreshTimes[pass]) + "\t" + millis(maintenanceTimes[pass]) + "\t"
+                    + result.calls + "\t" + result.notEnough + "\t" + result.unknown + "\t" + result.placed + "\t"
+                    + result.unplaced);
+
+            if (this.maxPassMillis > 0L && millis(maintenanceTimes[pass]) > this.maxPassMillis) {
+                System.out.println("pass " + pass + " took longer than " + this.maxPassMillis + " ms");
+                passed = false;
+            }
+            if (this.maxCallsPerPass > 0L && result.calls > this.maxCallsPerPass) {
+                System.out.println("pass " + pass + " needed more than " + this.maxCallsPerPass + " calls");
+                passed = false;
+            }
+        }
+
+        Arrays.sort(refreshTimes);
+        Arrays.sort(maintenanceTimes);
+        long totalTime = 0L;
+        for (long maintenanceTime : maintenanceTimes) {
+            totalTime += maintenanceTime;
+        }
+
+        System.out.println();
+        System.out.println("refresh ms: median " + millis(refreshTimes[this.passes / 2])
+                + ", max " + millis(refreshTimes[this.passes - 1]));
+        System.out.println("maintenance ms: min " + millis(maintenanceTimes[0]) + ", median "
+                + millis(maintenanceTimes[this.passes / 2]) + ", max " + millis(maintenanceTimes[this.passes - 1]));
+        System.out.println("canTake calls per pass: " + totalCalls / this.passes + ", per second: "
+                + (totalTime > 0L ? totalCalls * 1000000000L / totalTime : 0L));
+        System.out.println("blockages per pass: not enough " + totalNotEnough / this.passes + ", unknown "
+                + totalUnknown / this.passes);
+        return passed;
+    }
+
+    /**
+     * Probes all measured slaves concurrently, like {@link FreeSpaceRefreshWork} does. The free space declines with
+     * every pass, so the forecast sees a trend.
+     */
+    private void refresh(int pass) throws InterruptedException, ExecutionException {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < this.nodes; i++) {
+            final String nodeName = this.nodeNames[i];
+            if (this.usableSpaces[i] == null) {
+                continue;
+            }
+
+            final long usableSpace = this.usableSpaces[i] - pass * this.declineBytes;
+
+            futures.add(RefreshExecutor.get().submit(new Runnable() {
+                public void run() {
+                    try {
+                        SpaceProbe.Result result = slave.act(new SpaceProbe());
+
+                        // the simulated slaves share a directory, but not their free space
+                        FreeSpaceCache.get().update(nodeName, new SpaceProbe.Result(usableSpace,
+                                usableSpace * 2L, result.getWorkspaces()));
+
+                        Map<String, String> nodeWorkspaces = new HashMap<String, String>();
+                        for (String dirName : result.getWorkspaces().keySet()) {
+                            nodeWorkspaces.put(dirName, dirName);
+                        }
+                        if (!nodeWorkspaces.equals(WorkspaceIndex.get().getWorkspaces(nodeName))) {
+                            WorkspaceIndex.get().put(nodeName, nodeWorkspaces);
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, false));
+        }
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private void addWorkspace(String nodeName, int pass) {
+        Map<String, String> nodeWorkspaces = WorkspaceIndex.get().getWorkspaces(nodeName);
+
+        if (nodeWorkspaces != null) {
+            Map<String, String> changed = new HashMap<String, String>(nodeWorkspaces);
+            changed.put("project0@" + (pass + 2), "project0");
+            WorkspaceIndex.get().put(nodeName, changed);
+        }
+    }
+
+    /**
+     * Offers every item the slaves in turn, starting at a different slave per item, until one takes it.
+     */
+    private void maintain(Pass result) {
+        String unknown = Messages.FreeDiskSpaceOnSlaveUnknown();
+
+        for (int item = 0; item < this.items; item++) {
+            boolean placed = false;
+
+            for (int i = 0; i < this.nodes && !placed; i++) {
+                CauseOfBlockage causeOfBlockage = this.dispatcher.canTake(this.slaves[(item + i) % this.nodes],
+                        this.queue[item], this.projectSpace);
+                result.calls++;
+
+                if (causeOfBlockage == null) {
+                    placed = true;
+                } else if (!unknown.equals(causeOfBlockage.getShortDescription())) {
+                    result.notEnough++;
+                } else {
+                    result.unknown++;
+                }
+            }
+
+            if (placed) {
+                result.placed++;
+            } else {
+                result.unplaced++;
+            }
+        }
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000L;
+    }
+
+    /**
+     * The decisions of a queue maintenance.
+     */
+    private static final class Pass {
+        long calls;
+
+        long notEnough;
+
+        long unknown;
+
+        long placed;
+
+        long unplaced;
+    }
+}
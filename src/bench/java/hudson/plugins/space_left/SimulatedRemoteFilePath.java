@@ -0,0 +1,59 @@
+package hudson.plugins.space_left;
+
+import hudson.FilePath;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for a {@link FilePath} on a slave, that executes callables in process. Like remoting, it serializes
+ * the callable and its result, and it waits the given latency per call.
+ */
+public class SimulatedRemoteFilePath {
+
+    /**
+     * the local directory standing in for the remote one
+     */
+    private final File file;
+
+    /**
+     * the simulated round trip time in microseconds
+     */
+    private final long latencyMicros;
+
+    public SimulatedRemoteFilePath(File file, long latencyMicros) {
+        this.file = file;
+        this.latencyMicros = latencyMicros;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T act(FilePath.FileCallable<T> callable) throws IOException, InterruptedException {
+        if (this.latencyMicros > 0L) {
+            TimeUnit.MICROSECONDS.sleep(this.latencyMicros);
+        }
+
+        FilePath.FileCallable<T> remote = (FilePath.FileCallable<T>) roundTrip(callable);
+        return (T) roundTrip(remote.invoke(this.file, null));
+    }
+
+    private static Object roundTrip(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+}
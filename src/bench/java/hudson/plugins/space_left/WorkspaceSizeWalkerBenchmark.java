@@ -0,0 +1,87 @@
+package hudson.plugins.space_left;
+
+import hudson.Util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Compares the {@link WorkspaceSizeWalker} with <code>du -sb</code> on a synthetic tree.
+ * <p>
+ * Run with <code>mvn -Pbenchmark test-compile exec:java -Dexec.mainClass=hudson.plugins.space_left.WorkspaceSizeWalkerBenchmark
+ * -Dexec.args="[files] [parallelism] [dir]"</code>, the defaults are 1000000 files, 4 threads and a temporary directory.
+ */
+public class WorkspaceSizeWalkerBenchmark {
+
+    /**
+     * the number of files per directory of the synthetic tree
+     */
+    private static final int FILES_PER_DIR = 1000;
+
+    /**
+     * the number of measurements of each tool
+     */
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        File root = args.length > 2 ? new File(args[2]) : Util.createTempDir();
+
+        try {
+            System.out.println("creating " + files + " files in " + root);
+            createTree(root, files);
+
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                long walked = new WorkspaceSizeWalker(parallelism).invoke(root, null);
+                long walkerMillis = (System.nanoTime() - start) / 1000000L;
+
+                start = System.nanoTime();
+                long du = du(root);
+                long duMillis = (System.nanoTime() - start) / 1000000L;
+
+                System.out.println("round " + round + ": walker " + walked + " bytes in " + walkerMillis
+                        + " ms, du " + du + " bytes in " + duMillis + " ms");
+            }
+        } finally {
+            if (args.length <= 2) {
+                Util.deleteRecursive(root);
+            }
+        }
+    }
+
+    private static void createTree(File root, int files) throws IOException {
+        byte[] content = new byte[100];
+
+        for (int i = 0; i < files; i++) {
+            File dir = new File(root, "d" + (i / FILES_PER_DIR / FILES_PER_DIR) + "/d" + (i / FILES_PER_DIR));
+            if (i % FILES_PER_DIR == 0 && !dir.mkdirs()) {
+                throw new IOException("could not create " + dir);
+            }
+
+            FileOutputStream out = new FileOutputStream(new File(dir, "f" + i));
+            try {
+                out.write(content, 0, i % content.length);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static long du(File root) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder("du", "-sb", root.getAbsolutePath()).start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+        try {
+            String line = reader.readLine();
+            process.waitFor();
+            return Long.parseLong(line.split("\\s+")[0]);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package hudson.plugins.space_left;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stops asking a slave after its remote calls have failed or timed out several times in a row. After the open time,
+ * one call is let through again, if it succeeds the slave is asked as usual. While the circuit of a slave is open,
+ * the dispatcher falls back to the last known free space, or to the policy if there is none.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class CircuitBreaker {
+    /**
+     * The number of failed calls in a row that opens the circuit.
+     */
+    static final int FAILURE_THRESHOLD = Integer.getInteger(CircuitBreaker.class.getName() + ".failureThreshold", 3);
+
+    /**
+     * Time in milliseconds the circuit stays open.
+     */
+    static final long OPEN_TIME = Long.getLong(CircuitBreaker.class.getName() + ".openTime", 300000L);
+
+    /**
+     * items are blocked, if the free space of a slave with an open circuit is not known
+     */
+    public static final String POLICY_BLOCK = "block";
+
+    /**
+     * items are allowed, if the free space of a slave with an open circuit is not known
+     */
+    public static final String POLICY_ALLOW = "allow";
+
+    /**
+     * The policy for slaves with an open circuit and without known free space.
+     */
+    static final String POLICY = System.getProperty(CircuitBreaker.class.getName() + ".policy", POLICY_BLOCK);
+
+    /**
+     * the only instance
+     */
+    private static final CircuitBreaker INSTANCE = new CircuitBreaker();
+
+    /**
+     * the state by node name, nodes without failures have none
+     */
+    private final ConcurrentMap<String, State> states = new ConcurrentHashMap<String, State>();
+
+    private CircuitBreaker() {
+    }
+
+    /**
+     * Returns the only instance of the circuit breaker.
+     * @return the circuit breaker
+     */
+    public static CircuitBreaker get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns true, if the given node must not be asked now. Once the open time has passed, this returns false
+     * for one call, until it has succeeded or failed.
+     *
+     * @param nodeName the name of the node
+     * @return true, if the circuit of the node is open
+     */
+    public boolean isOpen(String nodeName) {
+        return this.isOpen(nodeName, System.currentTimeMillis());
+    }
+
+    boolean isOpen(String nodeName, long now) {
+        State state = this.states.get(nodeName);
+        return state != null && state.isOpen(now);
+    }
+
+    /**
+     * Returns true, if the circuit of the given node is open, without letting a call through.
+     *
+     * @param nodeName the name of the node
+     * @return true, if the node has failed too often
+     */
+    public boolean isTripped(String nodeName) {
+        State state = this.states.get(nodeName);
+        return state != null && state.isTripped();
+    }
+
+    /**
+     * Closes the circuit of the given node.
+     *
+     * @param nodeName the name of the node
+     */
+    public void recordSuccess(String nodeName) {
+        this.states.remove(nodeName);
+    }
+
+    /**
+     * Counts a failed call of the given node and opens the circuit, if the node has failed too often.
+     *
+     * @param nodeName the name of the node
+     */
+    public void recordFailure(String nodeName) {
+        this.recordFailure(nodeName, System.currentTimeMillis());
+    }
+
+    void recordFailure(String nodeName, long now) {
+        State state = this.states.get(nodeName);
+
+        if (state == null) {
+            state = new State();
+            State existing = this.states.putIfAbsent(nodeName, state);
+            if (existing != null) {
+                state = existing;
+            }
+        }
+
+        state.recordFailure(now);
+    }
+
+    /**
+     * Returns true, if items should be allowed on slaves with an open circuit and without known free space.
+     * @return true, if the policy is allow
+     */
+    static boolean isAllowPolicy() {
+        return POLICY_ALLOW.equals(POLICY);
+    }
+
+    /**
+     * Forgets the given node.
+     *
+     * @param nodeName the name of the node
+     */
+    public void removeNode(String nodeName) {
+        this.states.remove(nodeName);
+    }
+
+    /**
+     * The failures of a node.
+     */
+    private static final class State {
+        private int failures;
+
+        /**
+         * the time until the circuit is open, 0 if it is closed
+         */
+        private long openUntil;
+
+        /**
+         * true, while the call let through after the open time has not returned
+         */
+        private boolean trial;
+
+        synchronized boolean isOpen(long now) {
+            if (this.openUntil == 0L) {
+                return false;
+            }
+            if (now < this.openUntil || this.trial) {
+                return true;
+            }
+
+            this.trial = true;
+            return false;
+        }
+
+        synchronized boolean isTripped() {
+            return this.openUntil != 0L;
+        }
+
+        synchronized void recordFailure(long now) {
+            this.failures++;
+            this.trial = false;
+
+            if (this.failures >= FAILURE_THRESHOLD) {
+                this.openUntil = now + OPEN_TIME;
+            }
+        }
+    }
+}
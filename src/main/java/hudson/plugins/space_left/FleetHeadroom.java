@@ -0,0 +1,289 @@
+package hudson.plugins.space_left;
+
+import hudson.model.Item;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the free space, the required space and the required space per project of all nodes as JSON, taken from
+ * the cached state only, so asking for it never calls a slave. The JSON is written while walking the nodes, without
+ * building it in memory first.
+ * <p>
+ * The entity tag is computed from the cached values the JSON is made of, the name of the user and the version of the
+ * security configuration, not from the JSON, so a poller asking whether anything has changed costs a lookup per node.
+ * The time of the last measurement is left out of the tag, so a refresh measuring the same free space does not
+ * change it.
+ * <p>
+ * Only the projects the user may read are listed. The totals of a node include the space of all projects.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+final class FleetHeadroom {
+    /**
+     * incremented whenever the projects a user may read may have changed
+     */
+    private static final AtomicLong SECURITY_VERSION = new AtomicLong();
+
+    private FleetHeadroom() {
+    }
+
+    /**
+     * Changes the entity tags of all users. Called when the configuration of Jenkins, an item or a user has been
+     * saved, as the permissions may have changed.
+     */
+    static void invalidateSecurity() {
+        SECURITY_VERSION.incrementAndGet();
+    }
+
+    /**
+     * Returns the entity tag of the current state.
+     *
+     * @return the entity tag, quoted
+     */
+    static String getETag() {
+        return getETag(null);
+    }
+
+    /**
+     * Returns the entity tag of the current state as seen by the given user.
+     *
+     * @param userName the name of the user or null
+     * @return the entity tag, quoted
+     */
+    static String getETag(String userName) {
+        long hash = RequiredSpaceMemo.get().getGeneration() + mix(SECURITY_VERSION.get() * 31L + 17L)
+                + (userName != null ? mix(userName.hashCode()) : 0L);
+        FreeSpaceCache cache = FreeSpaceCache.get();
+
+        for (String nodeName : cache.getNodeNames()) {
+            FreeSpaceCache.Snapshot snapshot = cache.getLastSnapshot(nodeName);
+            long nodeHash = nodeName.hashCode();
+
+            if (snapshot != null) {
+                nodeHash = nodeHash * 31L + (snapshot.getUsableSpace() != null ? snapshot.getUsableSpace() : -1L);
+                nodeHash = nodeHash * 31L + snapshot.getTotalSpace();
+                nodeHash = nodeHash * 31L + snapshot.getStoreUsableSpace().hashCode();
+            }
+            nodeHash = nodeHash * 31L + SpaceReservations.get().getReserved(nodeName);
+
+            // independent of the order of the nodes
+            hash += mix(nodeHash);
+        }
+
+        return "\"" + Long.toHexString(hash) + "\"";
+    }
+
+    /**
+     * Spreads the bits of the given value, so the sum of several values rarely collides.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * Writes the state of all nodes as JSON.
+     *
+     * @param out the writer
+     * @param projectSpace resolves the space needed by the projects
+     * @param filter decides which projects are listed
+     */
+    static void write(Writer out, RequiredSpace.ProjectSpace projectSpace, ProjectFilter filter) throws IOException {
+        FreeSpaceCache cache = FreeSpaceCache.get();
+        WorkspaceIndex index = WorkspaceIndex.get();
+        boolean first = true;
+        filter = new MemoizingFilter(filter);
+
+        out.write("{\"nodes\":[");
+
+        for (String nodeName : toSet(cache.getNodeNames())) {
+            FreeSpaceCache.Snapshot snapshot = cache.getLastSnapshot(nodeName);
+            Map<String, String> workspaces = index.getWorkspaces(nodeName);
+
+            if (snapshot == null || workspaces == null) {
+                continue;
+            }
+
+            RequiredSpaceMemo.Totals totals = RequiredSpaceMemo.get().getTotals(nodeName, workspaces,
+                    index.getCustomWorkspaces(nodeName), snapshot, projectSpace);
+
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+
+            writeNode(out, nodeName, snapshot, totals, SpaceReservations.get().getReserved(nodeName), filter);
+        }
+
+        out.write("]}");
+        out.flush();
+    }
+
+    private static void writeNode(Writer out, String nodeName, FreeSpaceCache.Snapshot snapshot,
+                                  RequiredSpaceMemo.Totals totals, long reserved, ProjectFilter filter) throws IOException {
+        String defaultStore = snapshot.getStore(SpaceProbe.DEFAULT_LOCATION);
+        Long usableSpace = snapshot.getUsableSpace(SpaceProbe.DEFAULT_LOCATION);
+
+        out.write("{\"name\":");
+        writeString(out, nodeName);
+        out.write(",\"timestamp\":");
+        out.write(String.valueOf(snapshot.getTimestamp()));
+        out.write(",\"usableSpace\":");
+        writeLong(out, usableSpace);
+        out.write(",\"totalSpace\":");
+        out.write(String.valueOf(snapshot.getTotalSpace()));
+        out.write(",\"reservedSpace\":");
+        out.write(String.valueOf(reserved));
+        out.write(",\"requiredSpace\":");
+        out.write(String.valueOf(totals.getRequiredSpace()));
+        out.write(",\"headroom\":");
+        writeLong(out, usableSpace != null
+                ? Long.valueOf(usableSpace - totals.getRequiredSpace(defaultStore, null) - reserved) : null);
+
+        out.write(",\"stores\":[");
+        boolean first = true;
+        for (String store : totals.getStores()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+
+            out.write("{\"store\":");
+            writeString(out, store);
+            out.write(",\"usableSpace\":");
+            writeLong(out, store != null ? snapshot.getStoreUsableSpace().get(store) : snapshot.getUsableSpace());
+            out.write(",\"requiredSpace\":");
+            out.write(String.valueOf(totals.getRequiredSpace(store, null)));
+            out.write('}');
+        }
+
+        out.write("],\"projects\":{");
+        first = true;
+        for (Map.Entry<String, Long> project : totals.getProjects().entrySet()) {
+            if (!filter.isVisible(project.getKey())) {
+                continue;
+            }
+
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+
+            writeString(out, project.getKey());
+            out.write(':');
+            out.write(String.valueOf(project.getValue()));
+        }
+        out.write("}}");
+    }
+
+    /**
+     * Decides which projects are listed.
+     */
+    interface ProjectFilter {
+        /**
+         * @param projectName the full name of the project
+         * @return true, if the project is listed
+         */
+        boolean isVisible(String projectName);
+    }
+
+    /**
+     * Lists the projects the current user may read.
+     */
+    static final ProjectFilter READABLE = new ProjectFilter() {
+        public boolean isVisible(String projectName) {
+            Item item = Jenkins.getInstance().getItemByFullName(projectName);
+            return item != null && item.hasPermission(Item.READ);
+        }
+    };
+
+    /**
+     * Asks the decorated filter once per project, as a project has workspaces on many nodes.
+     */
+    private static final class MemoizingFilter implements ProjectFilter {
+        private final ProjectFilter delegate;
+
+        private final Map<String, Boolean> visible = new HashMap<String, Boolean>();
+
+        MemoizingFilter(ProjectFilter delegate) {
+            this.delegate = delegate;
+        }
+
+        public boolean isVisible(String projectName) {
+            Boolean value = this.visible.get(projectName);
+
+            if (value == null) {
+                value = this.delegate.isVisible(projectName);
+                this.visible.put(projectName, value);
+            }
+            return value;
+        }
+    }
+
+    private static TreeSet<String> toSet(Iterable<String> names) {
+        TreeSet<String> set = new TreeSet<String>();
+        for (String name : names) {
+            set.add(name);
+        }
+        return set;
+    }
+
+    private static void writeLong(Writer out, Long value) throws IOException {
+        out.write(value != null ? value.toString() : "null");
+    }
+
+    /**
+     * Writes the given string as a JSON string.
+     */
+    static void writeString(Writer out, String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        String hex = Integer.toHexString(c);
+                        out.write("\\u");
+                        for (int j = hex.length(); j < 4; j++) {
+                            out.write('0');
+                        }
+                        out.write(hex);
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
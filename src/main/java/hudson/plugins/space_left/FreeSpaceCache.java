@@ -0,0 +1,327 @@
+package hudson.plugins.space_left;
+
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the last measured free disk space per node, so the queue does not have to ask the slave
+ * every time an item is checked. The values are refreshed in the background by {@link FreeSpaceRefreshWork}
+ * and on demand, when a value is read that is older than the refresh interval.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class FreeSpaceCache {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(FreeSpaceCache.class.getName());
+
+    /**
+     * Time in milliseconds after which a snapshot is refreshed.
+     */
+    static final long REFRESH_INTERVAL = Long.getLong(FreeSpaceCache.class.getName() + ".refreshInterval", 60000L);
+
+    /**
+     * Time in milliseconds after which a snapshot is no longer trusted.
+     */
+    static final long MAX_AGE = Long.getLong(FreeSpaceCache.class.getName() + ".maxAge", 300000L);
+
+    /**
+     * the only instance
+     */
+    private static final FreeSpaceCache INSTANCE = new FreeSpaceCache();
+
+    /**
+     * the snapshots by node name
+     */
+    private final ConcurrentMap<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+
+    /**
+     * the names of the nodes whose free space is pushed by a {@link SpaceMonitor}
+     */
+    private final ConcurrentMap<String, Boolean> monitored = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * the names of the nodes with a refresh waiting or running in the executor
+     */
+    private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+
+    private FreeSpaceCache() {
+    }
+
+    /**
+     * Returns the only instance of the cache.
+     * @return the cache
+     */
+    public static FreeSpaceCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the snapshot of the given node without blocking. If the snapshot is older than the refresh interval,
+     * a refresh is requested in the background.
+     *
+     * @param node the node to get the snapshot for
+     * @return the snapshot or null, if the free space is not known or too old to be trusted
+     */
+    public Snapshot getSnapshot(Node node) {
+        return this.getSnapshot(node.getNodeName());
+    }
+
+    /**
+     * Returns the snapshot of the given node without blocking. If the snapshot is older than the refresh interval,
+     * a refresh is requested in the background. Snapshots pushed by a {@link SpaceMonitor} are only refreshed,
+     * when they are too old to be trusted.
+     *
+     * @param nodeName the name of the node to get the snapshot for
+     * @return the snapshot or null, if the free space is not known or too old to be trusted
+     */
+    public Snapshot getSnapshot(String nodeName) {
+        Snapshot snapshot = this.snapshots.get(nodeName);
+        long now = System.currentTimeMillis();
+
+        long refreshInterval = this.isMonitored(nodeName) ? MAX_AGE : REFRESH_INTERVAL;
+
+        if (snapshot == null || now - snapshot.getTimestamp() > refreshInterval) {
+            this.requestRefresh(nodeName);
+        }
+
+        if (snapshot == null || now - snapshot.getTimestamp() > MAX_AGE) {
+            return null;
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Returns the last snapshot of the given node, however old it is, without requesting a refresh.
+     *
+     * @param nodeName the name of the node to get the snapshot for
+     * @return the snapshot or null, if the node has never been measured
+     */
+    public Snapshot getLastSnapshot(String nodeName) {
+        return this.snapshots.get(nodeName);
+    }
+
+    /**
+     * Measures the free space of the given node and stores it. This method blocks until the slave has answered.
+     * The workspaces listed by the slave are passed to the {@link WorkspaceIndex}.
+     *
+     * @param node the node to measure
+     */
+    public void refresh(Node node) throws IOException, InterruptedException {
+        SpaceProbe.probe(node);
+    }
+
+    /**
+     * Stores the free space the slave answered.
+     *
+     * @param nodeName the name of the node
+     * @param result the answer of the slave
+     */
+    void update(String nodeName, SpaceProbe.Result result) {
+        Snapshot snapshot = new Snapshot(result.getUsableSpace(), result.getTotalSpace(), System.currentTimeMillis(),
+                result.getLocations(), result.getStoreUsableSpace());
+        this.snapshots.put(nodeName, snapshot);
+        SpaceForecast.get().record(nodeName, snapshot);
+    }
+
+    /**
+     * Restores a snapshot of the given node, if it has not been measured since the start.
+     *
+     * @param nodeName the name of the node
+     * @param snapshot the snapshot
+     */
+    void restore(String nodeName, Snapshot snapshot) {
+        this.snapshots.putIfAbsent(nodeName, snapshot);
+    }
+
+    /**
+     * Refreshes the free space of the given node in the background. Does nothing, if a refresh of the node
+     * is already waiting.
+     *
+     * @param nodeName the name of the node to measure
+     */
+    public void requestRefresh(final String nodeName) {
+        // outside of the queue lock
+        this.submitRefresh(nodeName, new Runnable() {
+            public void run() {
+                try {
+                    Node node = Jenkins.getInstance().getNode(nodeName);
+                    if (node != null) {
+                        refresh(node);
+                    }
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "could not refresh free disk space of " + nodeName, e);
+                } catch (InterruptedException e) {
+                    LOG.log(Level.WARNING, "could not refresh free disk space of " + nodeName, e);
+                }
+            }
+        }, false);
+    }
+
+    /**
+     * Runs the given refresh of the given node in the {@link RefreshExecutor}, unless a refresh of the node is
+     * already waiting or running. The periodic and the on-demand refreshes both pass here, so a node is never
+     * probed twice at once.
+     *
+     * @param nodeName the name of the node to measure
+     * @param refresh the refresh of the node
+     * @param jitter true, if the refresh is delayed by a random time, see {@link RefreshExecutor#submit}
+     * @return the submitted refresh or null, if a refresh of the node is already waiting or running
+     */
+    Future<?> submitRefresh(final String nodeName, final Runnable refresh, boolean jitter) {
+        if (this.pending.putIfAbsent(nodeName, Boolean.TRUE) != null) {
+            return null;
+        }
+
+        return RefreshExecutor.get().submit(new Runnable() {
+            public void run() {
+                try {
+                    refresh.run();
+                } finally {
+                    pending.remove(nodeName);
+                }
+            }
+        }, jitter);
+    }
+
+    /**
+     * Marks the given node as monitored, so its free space is no longer polled.
+     *
+     * @param nodeName the name of the node
+     * @param isMonitored true, if a {@link SpaceMonitor} pushes the free space of the node
+     */
+    public void setMonitored(String nodeName, boolean isMonitored) {
+        if (isMonitored) {
+            this.monitored.put(nodeName, Boolean.TRUE);
+        } else {
+            this.monitored.remove(nodeName);
+        }
+    }
+
+    /**
+     * Returns true, if a {@link SpaceMonitor} pushes the free space of the given node.
+     *
+     * @param nodeName the name of the node
+     * @return true, if the node is monitored
+     */
+    public boolean isMonitored(String nodeName) {
+        return this.monitored.containsKey(nodeName);
+    }
+
+    /**
+     * Removes the snapshot of the given node.
+     * @param nodeName the name of the node
+     */
+    public void remove(String nodeName) {
+        this.snapshots.remove(nodeName);
+        this.monitored.remove(nodeName);
+    }
+
+    /**
+     * Returns the names of all nodes with a snapshot.
+     * @return the node names
+     */
+    public Iterable<String> getNodeNames() {
+        return this.snapshots.keySet();
+    }
+
+    /**
+     * The free space of a node at a point in time, per file store of the workspace locations.
+     */
+    public static final class Snapshot {
+        /**
+         * the usable space in bytes or null, if the slave could not tell
+         */
+        private final Long usableSpace;
+
+        /**
+         * the total space in bytes or 0, if the slave could not tell
+         */
+        private final long totalSpace;
+
+        /**
+         * the time of the measurement
+         */
+        private final long timestamp;
+
+        /**
+         * the file stores by workspace location
+         */
+        private final Map<String, String> locations;
+
+        /**
+         * the usable space in bytes by file store, null if the slave could not tell
+         */
+        private final Map<String, Long> storeUsableSpace;
+
+        public Snapshot(Long usableSpace, long totalSpace, long timestamp) {
+            this(usableSpace, totalSpace, timestamp, Collections.<String, String>emptyMap(), Collections.<String, Long>emptyMap());
+        }
+
+        public Snapshot(Long usableSpace, long totalSpace, long timestamp, Map<String, String> locations,
+                        Map<String, Long> storeUsableSpace) {
+            this.usableSpace = usableSpace;
+            this.totalSpace = totalSpace;
+            this.timestamp = timestamp;
+            this.locations = locations;
+            this.storeUsableSpace = storeUsableSpace;
+        }
+
+        /**
+         * Returns the file store of the given workspace location.
+         *
+         * @param location the workspace location, see {@link SpaceProbe#DEFAULT_LOCATION}
+         * @return the file store or null, if it is not known
+         */
+        public String getStore(String location) {
+            return this.locations.get(location);
+        }
+
+        /**
+         * Returns the usable space of the file store of the given workspace location. If the file store is not known,
+         * the usable space of the slave root is returned.
+         *
+         * @param location the workspace location, see {@link SpaceProbe#DEFAULT_LOCATION}
+         * @return the usable space in bytes or null, if the slave could not tell
+         */
+        public Long getUsableSpace(String location) {
+            String store = this.getStore(location);
+
+            if (store != null && this.storeUsableSpace.containsKey(store)) {
+                return this.storeUsableSpace.get(store);
+            }
+            return this.usableSpace;
+        }
+
+        public Map<String, Long> getStoreUsableSpace() {
+            return storeUsableSpace;
+        }
+
+        public Map<String, String> getLocations() {
+            return locations;
+        }
+
+        public Long getUsableSpace() {
+            return usableSpace;
+        }
+
+        public long getTotalSpace() {
+            return totalSpace;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package hudson.plugins.space_left;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Refreshes the {@link FreeSpaceCache} and reconciles the {@link WorkspaceIndex} for all online slaves periodically.
+ * The slaves are probed concurrently by the {@link RefreshExecutor}.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+@Extension
+public class FreeSpaceRefreshWork extends AsyncPeriodicWork {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(FreeSpaceRefreshWork.class.getName());
+
+    /**
+     * Time in milliseconds after which the workspaces of a slave monitored by a {@link SpaceMonitor} are reconciled.
+     */
+    static final long RECONCILE_INTERVAL = Long.getLong(FreeSpaceRefreshWork.class.getName() + ".reconcileInterval",
+            600000L);
+
+    /**
+     * the time of the last refresh by node name
+     */
+    private final ConcurrentMap<String, Long> refreshed = new ConcurrentHashMap<String, Long>();
+
+    public FreeSpaceRefreshWork() {
+        super("Space left refresh");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return FreeSpaceCache.REFRESH_INTERVAL;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        FreeSpaceCache cache = FreeSpaceCache.get();
+        Set<String> nodeNames = new HashSet<String>();
+        Map<String, Future<?>> refreshes = new HashMap<String, Future<?>>();
+
+        for (final Node node : Jenkins.getInstance().getNodes()) {
+            if (!(node instanceof Slave)) {
+                continue;
+            }
+
+            nodeNames.add(node.getNodeName());
+
+            Computer computer = node.toComputer();
+            if (computer == null || computer.isOffline()) {
+                continue;
+            }
+
+            final long now = System.currentTimeMillis();
+            if (cache.isMonitored(node.getNodeName())) {
+                // the free space of monitored slaves is pushed, only their workspaces need to be listed now and then
+                Long lastRefresh = this.refreshed.get(node.getNodeName());
+                if (lastRefresh != null && now - lastRefresh < RECONCILE_INTERVAL) {
+                    continue;
+                }
+            } else {
+                // measured on demand or restored at the start, the refreshes stay spread over the interval
+                FreeSpaceCache.Snapshot snapshot = cache.getLastSnapshot(node.getNodeName());
+                if (snapshot != null && now - snapshot.getTimestamp() < FreeSpaceCache.REFRESH_INTERVAL / 2L) {
+                    continue;
+                }
+            }
+
+            // all slaves are probed at once, each one paying its own round trip, but never twice at once
+            Future<?> refresh = cache.submitRefresh(node.getNodeName(), new Runnable() {
+                public void run() {
+                    try {
+                        FreeSpaceCache.get().refresh(node);
+                        refreshed.put(node.getNodeName(), now);
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "could not refresh free disk space of " + node.getNodeName(), e);
+                    } catch (InterruptedException e) {
+                        LOG.log(Level.WARNING, "could not refresh free disk space of " + node.getNodeName(), e);
+                    }
+                }
+            }, true);
+
+            if (refresh != null) {
+                refreshes.put(node.getNodeName(), refresh);
+            }
+        }
+
+        // the probes are bounded by their timeout, so this does not wait forever
+        for (Map.Entry<String, Future<?>> refresh : refreshes.entrySet()) {
+            try {
+                refresh.getValue().get();
+            } catch (ExecutionException e) {
+                LOG.log(Level.WARNING, "could not refresh free disk space of " + refresh.getKey(), e.getCause());
+            }
+        }
+
+        // forget nodes that have been removed
+        for (String nodeName : cache.getNodeNames()) {
+            if (!nodeNames.contains(nodeName)) {
+                cache.remove(nodeName);
+                this.refreshed.remove(nodeName);
+                CircuitBreaker.get().removeNode(nodeName);
+                SpaceForecast.get().removeNode(nodeName);
+                RequiredSpaceMemo.get().removeNode(nodeName);
+            }
+        }
+
+        WorkspaceIndex index = WorkspaceIndex.get();
+        for (String nodeName : index.getNodeNames()) {
+            if (!nodeNames.contains(nodeName)) {
+                index.removeNode(nodeName);
+                SpaceReservations.get().removeNode(nodeName);
+                SpaceLeftMetrics.get().removeNode(nodeName);
+                WorkspaceReclaimer.get().removeNode(nodeName);
+            }
+        }
+
+        // drop reservations of builds that never started
+        SpaceReservations.get().purge(System.currentTimeMillis() - SpaceReservations.MAX_AGE);
+    }
+}
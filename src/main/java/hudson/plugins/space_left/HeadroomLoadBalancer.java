@@ -0,0 +1,159 @@
+package hudson.plugins.space_left;
+
+import hudson.model.AbstractProject;
+import hudson.model.LoadBalancer;
+import hudson.model.Queue;
+import hudson.model.Slave;
+import hudson.model.queue.MappingWorksheet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Places items on the node with the best free space left after the placement, instead of the first node
+ * the decorated load balancer picks. Best fit fills up nodes before using empty ones and keeps room for big items,
+ * worst fit spreads the workspaces over all nodes.
+ * <p>
+ * Only items that run in one piece are placed, everything else and items without any node with known free space
+ * are left to the decorated load balancer. Enabled by the system property
+ * <tt>hudson.plugins.space_left.HeadroomLoadBalancer.strategy</tt> set to <tt>bestFit</tt> or <tt>worstFit</tt>.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public class HeadroomLoadBalancer extends LoadBalancer {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(HeadroomLoadBalancer.class.getName());
+
+    /**
+     * the node with the least space left, that still has enough, is taken
+     */
+    public static final String BEST_FIT = "bestFit";
+
+    /**
+     * the node with the most space left is taken
+     */
+    public static final String WORST_FIT = "worstFit";
+
+    /**
+     * The configured strategy or null, if the load balancer is not used.
+     */
+    static final String STRATEGY = System.getProperty(HeadroomLoadBalancer.class.getName() + ".strategy");
+
+    /**
+     * the decorated load balancer
+     */
+    private final LoadBalancer delegate;
+
+    /**
+     * true for best fit, false for worst fit
+     */
+    private final boolean bestFit;
+
+    public HeadroomLoadBalancer(LoadBalancer delegate, String strategy) {
+        this.delegate = delegate;
+        this.bestFit = !WORST_FIT.equals(strategy);
+    }
+
+    /**
+     * Returns true, if the given strategy selects this load balancer.
+     *
+     * @param strategy the strategy
+     * @return true, if the strategy is known
+     */
+    static boolean isEnabled(String strategy) {
+        return BEST_FIT.equals(strategy) || WORST_FIT.equals(strategy);
+    }
+
+    @Override
+    public MappingWorksheet.Mapping map(Queue.Task task, MappingWorksheet worksheet) {
+        if (!(task instanceof AbstractProject) || worksheet.works.size() != 1) {
+            return this.delegate.map(task, worksheet);
+        }
+
+        AbstractProject project = (AbstractProject) task;
+        long spaceNeeded = ReservingLoadBalancer.getSpaceNeeded(project, worksheet.item);
+        String location = SpaceLeftQueueTaskDispatcher.getLocation(worksheet.item);
+
+        final Map<MappingWorksheet.ExecutorChunk, Long> headrooms = new HashMap<MappingWorksheet.ExecutorChunk, Long>();
+        List<MappingWorksheet.ExecutorChunk> candidates = new ArrayList<MappingWorksheet.ExecutorChunk>();
+
+        for (MappingWorksheet.ExecutorChunk executorChunk : worksheet.works(0).applicableExecutorChunks()) {
+            candidates.add(executorChunk);
+
+            if (executorChunk.node instanceof Slave) {
+                // the workspace of the project is reused, so it is not counted
+                Long headroom = SpaceLeftQueueTaskDispatcher.getHeadroom(executorChunk.node.getNodeName(), spaceNeeded,
+                        location, project.getFullName(), project.getEstimatedDuration(), ProjectSpaceCache.get());
+                if (headroom != null) {
+                    headrooms.put(executorChunk, headroom);
+                }
+            }
+        }
+
+        if (headrooms.isEmpty()) {
+            return this.delegate.map(task, worksheet);
+        }
+
+        // stable, so nodes that compare equal keep the order of the worksheet
+        Collections.sort(candidates, new HeadroomComparator(headrooms, this.bestFit));
+
+        for (MappingWorksheet.ExecutorChunk executorChunk : candidates) {
+            MappingWorksheet.Mapping mapping = worksheet.new Mapping();
+            mapping.assign(0, executorChunk);
+
+            if (mapping.isCompletelyValid()) {
+                LOG.log(Level.FINE, "placing " + project.getName() + " on " + executorChunk.node.getNodeName()
+                        + " with " + headrooms.get(executorChunk) + " bytes left");
+                return mapping;
+            }
+        }
+
+        return this.delegate.map(task, worksheet);
+    }
+
+    /**
+     * Orders the nodes with enough space by their space left, then the nodes with unknown space, then the nodes
+     * without enough space.
+     */
+    static final class HeadroomComparator implements Comparator<MappingWorksheet.ExecutorChunk> {
+        private final Map<MappingWorksheet.ExecutorChunk, Long> headrooms;
+
+        private final boolean bestFit;
+
+        HeadroomComparator(Map<MappingWorksheet.ExecutorChunk, Long> headrooms, boolean bestFit) {
+            this.headrooms = headrooms;
+            this.bestFit = bestFit;
+        }
+
+        public int compare(MappingWorksheet.ExecutorChunk o1, MappingWorksheet.ExecutorChunk o2) {
+            return compare(this.headrooms.get(o1), this.headrooms.get(o2), this.bestFit);
+        }
+
+        static int compare(Long headroom1, Long headroom2, boolean bestFit) {
+            int rank1 = rank(headroom1);
+            int rank2 = rank(headroom2);
+
+            if (rank1 != rank2 || rank1 != 0) {
+                return rank1 < rank2 ? -1 : (rank1 == rank2 ? 0 : 1);
+            }
+
+            int order = headroom1.compareTo(headroom2);
+            return bestFit ? order : -order;
+        }
+
+        private static int rank(Long headroom) {
+            if (headroom == null) {
+                return 1;
+            }
+            return headroom > 0L ? 0 : 2;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package hudson.plugins.space_left;
+
+import hudson.remoting.Callable;
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the size of a workspace and the free space of its file store on the slave while a build runs, keeping
+ * the peak values. Every sample measures the whole workspace, as a file growing in place does not modify its
+ * directory, so an incremental measurement would miss it. The time between two samples is at least the time the
+ * last sample took, so the sampler keeps a single thread busy half of the time at most.
+ * <p>
+ * The samples measure the apparent size. If the allocated disk space is asked for, <code>du</code> is run once when
+ * the sampler stops, and the peak is scaled by the ratio of the allocated to the apparent size at the end.
+ * <p>
+ * A measurement that fails when the sampler stops is logged and the peak sampled so far is returned, so it never
+ * fails the build. A sampler that is not stopped, e.g. as the channel to the master has been lost, ends itself after
+ * its maximum lifetime.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+final class PeakSampler implements Runnable {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(PeakSampler.class.getName());
+
+    /**
+     * Time in milliseconds a sampler runs at most, read on the master.
+     */
+    static final long MAX_LIFETIME = Long.getLong(PeakSampler.class.getName() + ".maxLifetime", 86400000L);
+
+    /**
+     * the samplers running in this slave JVM by id
+     */
+    private static final ConcurrentMap<String, PeakSampler> SAMPLERS = new ConcurrentHashMap<String, PeakSampler>();
+
+    private final String id;
+
+    private final File workspace;
+
+    private final long interval;
+
+    private final boolean allocated;
+
+    private final long maxLifetime;
+
+    private final Thread thread;
+
+    private long peakSize = -1L;
+
+    private long lastSize = -1L;
+
+    private long minUsableSpace = -1L;
+
+    private PeakSampler(String id, File workspace, long interval, boolean allocated, long maxLifetime) {
+        this.id = id;
+        this.workspace = workspace;
+        this.interval = interval;
+        this.allocated = allocated;
+        this.maxLifetime = maxLifetime;
+        this.thread = new Thread(this, "Space left peak sampler for " + workspace);
+        this.thread.setDaemon(true);
+    }
+
+    public void run() {
+        long started = System.currentTimeMillis();
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long start = System.currentTimeMillis();
+
+                if (start - started > this.maxLifetime) {
+                    LOG.log(Level.WARNING, "sampler of " + this.workspace + " has not been stopped within "
+                            + this.maxLifetime + " ms, ending it");
+                    SAMPLERS.remove(this.id, this);
+                    return;
+                }
+
+                try {
+                    this.sample();
+                } catch (IOException e) {
+                    // e.g. a directory that cannot be read for a moment, the next sample may succeed
+                    LOG.log(Level.WARNING, "could not sample the size of " + this.workspace, e);
+                }
+
+                Thread.sleep(Math.max(this.interval, System.currentTimeMillis() - start));
+            }
+        } catch (InterruptedException e) {
+            // stopped at the end of the build
+        }
+    }
+
+    private void sample() throws IOException {
+        long size = new WorkspaceSizeWalker(1).invoke(this.workspace, null);
+        Long usableSpace = getUsableSpace(this.workspace);
+
+        synchronized (this) {
+            this.lastSize = size;
+            this.peakSize = Math.max(this.peakSize, size);
+
+            if (usableSpace != null && (this.minUsableSpace < 0L || usableSpace < this.minUsableSpace)) {
+                this.minUsableSpace = usableSpace;
+            }
+        }
+    }
+
+    @IgnoreJRERequirement
+    private static Long getUsableSpace(File f) {
+        try {
+            long s = f.getUsableSpace();
+            return s > 0L ? s : null;
+        } catch (LinkageError e) {
+            // pre-mustang
+            return null;
+        }
+    }
+
+    /**
+     * Stops the sampler and takes a last sample. If the last sample fails, the samples taken so far count.
+     *
+     * @return the peak or null, if no sample has been taken
+     */
+    private Peak stop() {
+        this.thread.interrupt();
+
+        try {
+            this.thread.join();
+            this.sample();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "could not take the last sample of " + this.workspace + ", keeping the samples so far", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            return this.getPeak();
+        }
+    }
+
+    private Peak getPeak() {
+        if (this.peakSize < 0L) {
+            return null;
+        }
+
+        if (!this.allocated) {
+            return new Peak(this.peakSize, this.lastSize, this.minUsableSpace);
+        }
+
+        Long allocatedSize = WorkspaceSizeWalker.du(this.workspace);
+
+        if (allocatedSize == null) {
+            return new Peak(WorkspaceSizeWalker.UNSUPPORTED, WorkspaceSizeWalker.UNSUPPORTED, this.minUsableSpace);
+        }
+
+        // an empty workspace at the end tells nothing about the ratio, the apparent peak is kept then
+        long peak = this.lastSize > 0L ? (long) ((double) this.peakSize * allocatedSize / this.lastSize) : this.peakSize;
+        return new Peak(Math.max(peak, allocatedSize), allocatedSize, this.minUsableSpace);
+    }
+
+    /**
+     * Starts sampling a workspace on the slave.
+     */
+    static final class Start implements Callable<Void, IOException> {
+        private final String id;
+
+        private final String workspace;
+
+        private final long interval;
+
+        private final boolean allocated;
+
+        private final long maxLifetime;
+
+        /**
+         * @param id identifies the sampler when it is stopped
+         * @param workspace the path of the workspace on the slave
+         * @param interval the time in milliseconds between two samples
+         * @param allocated true, if the allocated disk space is measured at the end instead of the apparent size
+         */
+        Start(String id, String workspace, long interval, boolean allocated) {
+            this(id, workspace, interval, allocated, MAX_LIFETIME);
+        }
+
+        /**
+         * @param maxLifetime the time in milliseconds after which the sampler ends itself, if it is not stopped
+         */
+        Start(String id, String workspace, long interval, boolean allocated, long maxLifetime) {
+            this.id = id;
+            this.workspace = workspace;
+            this.interval = interval;
+            this.allocated = allocated;
+            this.maxLifetime = maxLifetime;
+        }
+
+        public Void call() throws IOException {
+            PeakSampler sampler = new PeakSampler(this.id, new File(this.workspace), this.interval, this.allocated,
+                    this.maxLifetime);
+            SAMPLERS.put(this.id, sampler);
+            sampler.thread.start();
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Stops sampling a workspace on the slave and returns the peak, or null if the sampler has ended already or
+     * has taken no sample.
+     */
+    static final class Stop implements Callable<Peak, IOException> {
+        private final String id;
+
+        Stop(String id) {
+            this.id = id;
+        }
+
+        public Peak call() throws IOException {
+            PeakSampler sampler = SAMPLERS.remove(this.id);
+
+            return sampler != null ? sampler.stop() : null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * The peak values sampled during a build.
+     */
+    static final class Peak implements Serializable {
+        private final long peakSize;
+
+        private final long finalSize;
+
+        private final long minUsableSpace;
+
+        Peak(long peakSize, long finalSize, long minUsableSpace) {
+            this.peakSize = peakSize;
+            this.finalSize = finalSize;
+            this.minUsableSpace = minUsableSpace;
+        }
+
+        /**
+         * @return the largest size of the workspace in bytes or {@link WorkspaceSizeWalker#UNSUPPORTED}, if the
+         * allocated disk space cannot be measured on the slave
+         */
+        public long getPeakSize() {
+            return peakSize;
+        }
+
+        /**
+         * @return the size of the workspace at the end of the build in bytes or
+         * {@link WorkspaceSizeWalker#UNSUPPORTED}, if the allocated disk space cannot be measured on the slave
+         */
+        public long getFinalSize() {
+            return finalSize;
+        }
+
+        /**
+         * @return the least free space of the file store of the workspace in bytes or -1, if it is not known
+         */
+        public long getMinUsableSpace() {
+            return minUsableSpace;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
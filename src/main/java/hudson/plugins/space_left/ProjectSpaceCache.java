@@ -0,0 +1,132 @@
+package hudson.plugins.space_left;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the space needed by the projects with Jenkins and remembers it, so the queue does not look up the item
+ * and its {@link SpaceLeftProperty} for every workspace it checks. The cache is cleared when items are created,
+ * renamed or deleted, when a job is saved, when a {@link SpaceLeftProperty} is changed and when a workspace size
+ * has been measured.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class ProjectSpaceCache implements RequiredSpace.ProjectSpace {
+    /**
+     * the only instance
+     */
+    private static final ProjectSpaceCache INSTANCE = new ProjectSpaceCache();
+
+    /**
+     * the space needed by project name, replaced as a whole when cleared, even for a single project
+     */
+    private volatile ConcurrentMap<String, Long> spaceNeeded = new ConcurrentHashMap<String, Long>();
+
+    private ProjectSpaceCache() {
+    }
+
+    /**
+     * Returns the only instance of the cache.
+     * @return the cache
+     */
+    public static ProjectSpaceCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param projectName the full name of the project
+     * @return the space needed by the project or 0, if there is no such project
+     */
+    public long getSpaceNeeded(String projectName) {
+        // a value resolved while the cache is cleared, as a whole or for this project, ends up in the map that
+        // has been replaced
+        ConcurrentMap<String, Long> cached = this.spaceNeeded;
+        Long value = cached.get(projectName);
+
+        if (value == null) {
+            value = resolve(projectName);
+            cached.put(projectName, value);
+        }
+
+        return value;
+    }
+
+    private static long resolve(String projectName) {
+        AbstractProject project = Jenkins.getInstance().getItemByFullName(projectName, AbstractProject.class);
+
+        if (project != null) {
+            return RequiredSpace.getSpaceNeeded(project);
+        }
+        return 0L;
+    }
+
+    /**
+     * Forgets the space needed by all projects and the totals computed from it.
+     */
+    public synchronized void invalidate() {
+        this.spaceNeeded = new ConcurrentHashMap<String, Long>();
+        RequiredSpaceMemo.get().invalidate();
+    }
+
+    /**
+     * Forgets the space needed by the given project and the totals computed from it.
+     *
+     * @param projectName the name of the project
+     */
+    public synchronized void invalidate(String projectName) {
+        // removing the key only would let a resolve in flight put its stale value back
+        ConcurrentMap<String, Long> cleared = new ConcurrentHashMap<String, Long>(this.spaceNeeded);
+        cleared.remove(projectName);
+        this.spaceNeeded = cleared;
+        RequiredSpaceMemo.get().invalidate();
+    }
+
+    /**
+     * Clears the cache when items come or go, as workspaces of unknown projects need no space.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onCreated(Item item) {
+            ProjectSpaceCache.get().invalidate();
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            ProjectSpaceCache.get().invalidate();
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            ProjectSpaceCache.get().invalidate();
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            ProjectSpaceCache.get().invalidate();
+        }
+    }
+
+    /**
+     * Clears the cache when a job is saved, as its required space may have been configured differently.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job) {
+                ProjectSpaceCache.get().invalidate();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package hudson.plugins.space_left;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the probes of the slaves concurrently, so refreshing all slaves takes about as long as the slowest round trip
+ * instead of the sum of them. Virtual threads are used where the JVM has them, a fixed pool of daemon threads
+ * otherwise. Either way, no more than the configured number of probes run at once.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class RefreshExecutor {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(RefreshExecutor.class.getName());
+
+    /**
+     * The number of probes running at once at most.
+     */
+    static final int CONCURRENCY = Integer.getInteger(RefreshExecutor.class.getName() + ".concurrency", 16);
+
+    /**
+     * Time in milliseconds a periodic probe is delayed at most, so the slaves are not all asked in the same instant.
+     */
+    static final long JITTER = Long.getLong(RefreshExecutor.class.getName() + ".jitter", 1000L);
+
+    /**
+     * the only instance
+     */
+    private static final RefreshExecutor INSTANCE = new RefreshExecutor();
+
+    private final ExecutorService executor = createExecutor();
+
+    /**
+     * caps the running probes, as virtual threads are not pooled
+     */
+    private final Semaphore permits = new Semaphore(CONCURRENCY);
+
+    private final Random random = new Random();
+
+    private RefreshExecutor() {
+    }
+
+    /**
+     * Returns the only instance of the executor.
+     * @return the executor
+     */
+    public static RefreshExecutor get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Runs the given task in the background, as soon as fewer than the maximum number of tasks are running.
+     *
+     * @param task the task, usually probing a slave
+     * @param jitter true, if the task is delayed by a random time up to the jitter
+     * @return the future of the task
+     */
+    public Future<?> submit(final Runnable task, boolean jitter) {
+        final long delay = jitter && JITTER > 0L ? (long) (this.random.nextDouble() * JITTER) : 0L;
+
+        return this.executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    if (delay > 0L) {
+                        Thread.sleep(delay);
+                    }
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            // no virtual threads in this JVM
+        } catch (Exception e) {
+            LOG.log(Level.FINE, "could not create virtual threads", e);
+        }
+        return Executors.newFixedThreadPool(CONCURRENCY, new DaemonThreadFactory());
+    }
+}
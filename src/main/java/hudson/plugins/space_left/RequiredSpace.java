@@ -1,27 +1,16 @@
 package hudson.plugins.space_left;
 
-import hudson.FilePath;
 import hudson.model.AbstractProject;
 import hudson.model.Node;
-import hudson.model.TopLevelItem;
-import hudson.remoting.VirtualChannel;
-import hudson.slaves.WorkspaceList;
-import jenkins.model.Jenkins;
-import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * Represents the space required by all connected workspaces on the given node/slave.
  */
 public class RequiredSpace {
 
-    /**
-     * The token that combines the project name and unique number to create unique workspace directory.
-     */
-    private static final String COMBINATOR = System.getProperty(WorkspaceList.class.getName(),"@");
-
     /**
      * the node to get the required space for.
      */
@@ -35,34 +24,73 @@ public class RequiredSpace {
     }
 
     /**
-     * Returns the required space of all connected workspaces.
+     * Returns the required space of all connected workspaces. The workspaces are taken from the {@link WorkspaceIndex},
+     * the slave is only asked, if the node has not been indexed yet.
      * @return the required space
      */
     public long getRequiredSpace(AbstractProject currentProject) throws IOException, InterruptedException {
+        WorkspaceIndex index = WorkspaceIndex.get();
+        Map<String, String> workspaces = index.getWorkspaces(this.node.getNodeName());
+
+        if (workspaces == null) {
+            index.reconcile(this.node);
+            workspaces = index.getWorkspaces(this.node.getNodeName());
+
+            if (workspaces == null) {
+                return 0L;
+            }
+        }
+
+        return getRequiredSpace(workspaces, currentProject != null ? currentProject.getFullName() : null, ProjectSpaceCache.get());
+    }
+
+    /**
+     * Returns the required space of the given workspaces.
+     *
+     * @param workspaces the project names by workspace directory name
+     * @param currentProjectName the name of the project whose workspace is not counted or null
+     * @param projectSpace resolves the space needed by the projects
+     * @return the required space
+     */
+    static long getRequiredSpace(Map<String, String> workspaces, String currentProjectName, ProjectSpace projectSpace) {
+        long requiredSpace = 0L;
+
+        for (Map.Entry<String, String> workspace : workspaces.entrySet()) {
+            if(currentProjectName == null || !workspace.getKey().equals(currentProjectName))
+            {
+                requiredSpace += projectSpace.getSpaceNeeded(workspace.getValue());
+            }
+        }
+
+        return requiredSpace;
+    }
+
+    /**
+     * Returns the required space of the workspaces that are on the same file store as the given workspace location.
+     * Workspaces on other file stores do not take space from the item.
+     *
+     * @param workspaces the project names by workspace directory name
+     * @param customWorkspaces the project names by custom workspace
+     * @param snapshot the free space of the node, knowing the file stores of the workspace locations
+     * @param location the workspace location of the item, see {@link SpaceProbe#DEFAULT_LOCATION}
+     * @param currentProjectName the name of the project whose workspace is not counted or null
+     * @param projectSpace resolves the space needed by the projects
+     * @return the required space
+     */
+    static long getRequiredSpace(Map<String, String> workspaces, Map<String, String> customWorkspaces,
+                                 FreeSpaceCache.Snapshot snapshot, String location, String currentProjectName,
+                                 ProjectSpace projectSpace) {
+        String store = snapshot.getStore(location);
         long requiredSpace = 0L;
-        FilePath p = this.node.getRootPath();
 
-        if (p == null) {
-            return requiredSpace;
+        if (isSameStore(store, snapshot.getStore(SpaceProbe.DEFAULT_LOCATION))) {
+            requiredSpace += getRequiredSpace(workspaces, currentProjectName, projectSpace);
         }
 
-        FilePath workspace = p.child("workspace");
-        if (workspace.exists()) {
-            for (FilePath projectDir : workspace.listDirectories()) {
-                TopLevelItem topLevelItem = Jenkins.getInstance().getItem(projectDir.getName());
-                if(topLevelItem == null && projectDir.getName().contains(COMBINATOR)) {
-                    String projectName = projectDir.getName();
-                    projectName = projectName.substring(0, projectName.lastIndexOf(COMBINATOR));
-                    topLevelItem = Jenkins.getInstance().getItem(projectName);
-                }
-
-                if (topLevelItem instanceof AbstractProject) {
-                    AbstractProject project = (AbstractProject) topLevelItem;
-                    if(currentProject == null || !projectDir.getName().equals(currentProject.getName()))
-                    {
-                        requiredSpace += this.getRequiredProjectSpace(project);
-                    }
-                }
+        for (Map.Entry<String, String> customWorkspace : customWorkspaces.entrySet()) {
+            if (!customWorkspace.getValue().equals(currentProjectName)
+                    && isSameStore(store, snapshot.getStore(customWorkspace.getKey()))) {
+                requiredSpace += projectSpace.getSpaceNeeded(customWorkspace.getValue());
             }
         }
 
@@ -70,19 +98,40 @@ public class RequiredSpace {
     }
 
     /**
-     * Returns the value of the SpaceLeftProperty.getRequiredSpace method. If the property is not set, 0 is returned.
-     * @param project the project containing SpaceLeftProperty.getRequiredSpace
-     * @return Returns the value of the SpaceLeftProperty.getRequiredSpace method
+     * Unknown file stores are the file store of the slave root.
+     */
+    private static boolean isSameStore(String store, String otherStore) {
+        return store == null ? otherStore == null : store.equals(otherStore);
+    }
+
+    /**
+     * Returns the value of the SpaceLeftProperty.getSpaceNeeded method, which is the static or estimated required
+     * space multiplied by the factor. If the property is not set, 0 is returned.
+     * @param project the project containing SpaceLeftProperty.getSpaceNeeded
+     * @return Returns the value of the SpaceLeftProperty.getSpaceNeeded method
      */
-    @SuppressWarnings("unchecked")
     public long getRequiredProjectSpace(AbstractProject project) {
+        return getSpaceNeeded(project);
+    }
+
+    @SuppressWarnings("unchecked")
+    static long getSpaceNeeded(AbstractProject project) {
         SpaceLeftProperty spaceLeftProperty = (SpaceLeftProperty) project.getProperty(SpaceLeftProperty.class);
 
         if(spaceLeftProperty != null) {
-            return spaceLeftProperty.getRequiredSpace();
+            return spaceLeftProperty.getSpaceNeeded();
         }
         return 0L;
     }
 
-
+    /**
+     * Resolves the space needed by a project.
+     */
+    interface ProjectSpace {
+        /**
+         * @param projectName the name of the project
+         * @return the space needed by the project or 0, if there is no such project
+         */
+        long getSpaceNeeded(String projectName);
+    }
 }
@@ -0,0 +1,384 @@
+package hudson.plugins.space_left;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Estimates the required space of a job from the workspace sizes measured by {@link SpaceLeftBuilder} in its last builds.
+ * The history is kept in memory and updated when a build completes, so no build has to be loaded for an estimate.
+ * At the start it is filled from the last completed builds of every job.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class RequiredSpaceEstimator {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(RequiredSpaceEstimator.class.getName());
+
+    /**
+     * Name of the build parameter containing the measured workspace size.
+     */
+    static final String WORKSPACE_SIZE_PARAMETER = "workspaceSize";
+
+    /**
+     * Name of the build parameter containing the largest workspace size sampled during the build.
+     */
+    static final String WORKSPACE_PEAK_SIZE_PARAMETER = "workspacePeakSize";
+
+    /**
+     * Number of measured workspace sizes kept per job.
+     */
+    static final int WINDOW = Integer.getInteger(RequiredSpaceEstimator.class.getName() + ".window", 20);
+
+    /**
+     * the only instance
+     */
+    private static final RequiredSpaceEstimator INSTANCE = new RequiredSpaceEstimator();
+
+    /**
+     * the histories by job name
+     */
+    private final ConcurrentMap<String, History> histories = new ConcurrentHashMap<String, History>();
+
+    private RequiredSpaceEstimator() {
+    }
+
+    /**
+     * Returns the only instance of the estimator.
+     * @return the estimator
+     */
+    public static RequiredSpaceEstimator get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the exponentially weighted moving average of the workspace sizes of the given job.
+     *
+     * @param jobName the full name of the job
+     * @param weight the weight of the latest size, between 0 and 1
+     * @return the average in bytes or -1, if no size has been measured yet
+     */
+    public long getAverage(String jobName, double weight) {
+        History history = this.histories.get(jobName);
+        return history != null ? history.getAverage(weight) : -1L;
+    }
+
+    /**
+     * Returns the given percentile of the workspace sizes of the given job.
+     *
+     * @param jobName the full name of the job
+     * @param percentile the percentile, between 0 and 100
+     * @return the percentile in bytes or -1, if no size has been measured yet
+     */
+    public long getPercentile(String jobName, double percentile) {
+        History history = this.histories.get(jobName);
+        return history != null ? history.getPercentile(percentile) : -1L;
+    }
+
+    /**
+     * Adds a measured workspace size of the given job.
+     *
+     * @param jobName the full name of the job
+     * @param size the workspace size in bytes
+     */
+    public void add(String jobName, long size) {
+        History history = this.histories.get(jobName);
+
+        if (history == null) {
+            history = new History(WINDOW);
+            History existing = this.histories.putIfAbsent(jobName, history);
+            if (existing != null) {
+                history = existing;
+            }
+        }
+
+        history.add(size);
+        ProjectSpaceCache.get().invalidate(jobName);
+    }
+
+    /**
+     * Forgets the history of the given job.
+     *
+     * @param jobName the full name of the job
+     */
+    public void remove(String jobName) {
+        if (this.histories.remove(jobName) != null) {
+            ProjectSpaceCache.get().invalidate();
+        }
+    }
+
+    /**
+     * Moves the history of a renamed job.
+     *
+     * @param oldName the old full name of the job
+     * @param newName the new full name of the job
+     */
+    public void rename(String oldName, String newName) {
+        History history = this.histories.remove(oldName);
+
+        if (history != null) {
+            this.histories.put(newName, history);
+            ProjectSpaceCache.get().invalidate();
+        }
+    }
+
+    /**
+     * Returns the names of the jobs with measured workspace sizes.
+     * @return the full names of the jobs
+     */
+    public Iterable<String> getJobNames() {
+        return this.histories.keySet();
+    }
+
+    /**
+     * Returns the measured workspace sizes of the given job still in the window.
+     *
+     * @param jobName the full name of the job
+     * @return the sizes, oldest first
+     */
+    public long[] getSizes(String jobName) {
+        History history = this.histories.get(jobName);
+        return history != null ? history.getSizes() : new long[0];
+    }
+
+    /**
+     * Restores the measured workspace sizes of the given job, if none have been measured since the start.
+     *
+     * @param jobName the full name of the job
+     * @param sizes the sizes, oldest first
+     */
+    void restore(String jobName, long[] sizes) {
+        History history = new History(WINDOW);
+
+        for (long size : sizes) {
+            history.add(size);
+        }
+
+        if (this.histories.putIfAbsent(jobName, history) == null) {
+            ProjectSpaceCache.get().invalidate(jobName);
+        }
+    }
+
+    /**
+     * Fills the history of the given job from its last completed builds, if no size has been measured since the
+     * start. Only as many builds as fit the window are looked at.
+     *
+     * @param project the job
+     */
+    void seed(AbstractProject<?, ?> project) {
+        long[] sizes = new long[WINDOW];
+        int n = 0;
+        int looked = 0;
+
+        // newest first
+        for (AbstractBuild<?, ?> build : project.getBuilds()) {
+            if (looked >= WINDOW) {
+                break;
+            }
+
+            if (build.isBuilding()) {
+                continue;
+            }
+            looked++;
+
+            long size = getWorkspaceSize(build);
+            if (size >= 0L) {
+                sizes[n++] = size;
+            }
+        }
+
+        if (n > 0) {
+            long[] oldestFirst = new long[n];
+            for (int i = 0; i < n; i++) {
+                oldestFirst[i] = sizes[n - 1 - i];
+            }
+            this.restore(project.getFullName(), oldestFirst);
+        }
+    }
+
+    /**
+     * Fills the histories of all jobs from their last completed builds, so the estimates do not fall back to the
+     * static required space until new builds have completed.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void seedAll() {
+        for (AbstractProject<?, ?> project : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+            RequiredSpaceEstimator.get().seed(project);
+        }
+    }
+
+    /**
+     * Returns the workspace size measured by the given build. The peak size sampled during the build is preferred
+     * over the size at the end, as the workspace must have room for the peak.
+     *
+     * @param build the build
+     * @return the workspace size in bytes or -1, if the build has not measured it
+     */
+    static long getWorkspaceSize(AbstractBuild<?, ?> build) {
+        long peakSize = getSize(build, WORKSPACE_PEAK_SIZE_PARAMETER);
+        return peakSize >= 0L ? peakSize : getSize(build, WORKSPACE_SIZE_PARAMETER);
+    }
+
+    private static long getSize(AbstractBuild<?, ?> build, String name) {
+        for (ParametersAction parametersAction : build.getActions(ParametersAction.class)) {
+            ParameterValue parameterValue = parametersAction.getParameter(name);
+            if (parameterValue instanceof StringParameterValue) {
+                String value = ((StringParameterValue) parameterValue).value;
+
+                try {
+                    return Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Error parsing workspace size from " + value);
+                }
+            }
+        }
+
+        return -1L;
+    }
+
+    /**
+     * The last measured workspace sizes of a job. The exponentially weighted moving average is computed with the
+     * weight asked for first and updated with every size added afterwards.
+     */
+    static final class History {
+        /**
+         * the last sizes, a ring buffer
+         */
+        private final long[] sizes;
+
+        /**
+         * the number of sizes added
+         */
+        private long count;
+
+        /**
+         * the sizes in ascending order, null if not sorted since the last size was added
+         */
+        private long[] sorted;
+
+        /**
+         * the weight of the average
+         */
+        private double weight = -1.0;
+
+        /**
+         * the average with the weight
+         */
+        private double average;
+
+        History(int window) {
+            this.sizes = new long[Math.max(1, window)];
+        }
+
+        synchronized void add(long size) {
+            this.sizes[(int) (this.count % this.sizes.length)] = size;
+            this.count++;
+            this.sorted = null;
+
+            if (this.weight >= 0.0) {
+                this.average = this.count == 1 ? size : this.weight * size + (1.0 - this.weight) * this.average;
+            }
+        }
+
+        synchronized long getAverage(double weight) {
+            if (this.count == 0) {
+                return -1L;
+            }
+
+            if (weight != this.weight) {
+                // start over with the sizes still in the window, oldest first
+                this.weight = weight;
+                int n = this.size();
+                for (int i = 0; i < n; i++) {
+                    long size = this.sizes[(int) ((this.count - n + i) % this.sizes.length)];
+                    this.average = i == 0 ? size : weight * size + (1.0 - weight) * this.average;
+                }
+            }
+
+            return (long) Math.ceil(this.average);
+        }
+
+        synchronized long getPercentile(double percentile) {
+            if (this.count == 0) {
+                return -1L;
+            }
+
+            if (this.sorted == null) {
+                this.sorted = new long[this.size()];
+                System.arraycopy(this.sizes, 0, this.sorted, 0, this.sorted.length);
+                Arrays.sort(this.sorted);
+            }
+
+            int index = (int) Math.ceil(Math.max(0.0, Math.min(100.0, percentile)) / 100.0 * this.sorted.length) - 1;
+            return this.sorted[Math.max(0, index)];
+        }
+
+        synchronized long[] getSizes() {
+            long[] window = new long[this.size()];
+
+            for (int i = 0; i < window.length; i++) {
+                window[i] = this.sizes[(int) ((this.count - window.length + i) % this.sizes.length)];
+            }
+            return window;
+        }
+
+        private int size() {
+            return (int) Math.min(this.count, this.sizes.length);
+        }
+    }
+
+    /**
+     * Adds the workspace size measured by a build to the history of its job.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<AbstractBuild> {
+        public RunListenerImpl() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            long size = getWorkspaceSize(build);
+
+            if (size >= 0L) {
+                RequiredSpaceEstimator.get().add(build.getProject().getFullName(), size);
+            }
+        }
+    }
+
+    /**
+     * Keeps the histories in line with renamed and deleted jobs.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            String fullName = item.getFullName();
+            String parent = fullName.substring(0, fullName.length() - newName.length());
+            RequiredSpaceEstimator.get().rename(parent + oldName, fullName);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            RequiredSpaceEstimator.get().remove(item.getFullName());
+        }
+    }
+}
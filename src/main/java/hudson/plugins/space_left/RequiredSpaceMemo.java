@@ -0,0 +1,352 @@
+package hudson.plugins.space_left;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import jenkins.model.Jenkins;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the required space of the workspaces per node, so a queue maintenance checking many items against
+ * the same node sums up the workspaces of the node only once. The totals are broken down per file store and
+ * per project, the workspace of the current project is excluded by subtracting its share.
+ * <p>
+ * The totals are computed again after anything they depend on has changed: the {@link WorkspaceIndex},
+ * the snapshot in the {@link FreeSpaceCache}, the measured workspace sizes or the configuration of a job.
+ * <p>
+ * The space the builds running on a node still have to write is remembered per file store for about one queue
+ * maintenance, as it changes while the builds run.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class RequiredSpaceMemo {
+    /**
+     * Time in milliseconds the space the running builds still write is remembered.
+     */
+    static final long RUNNING_INTERVAL = 1000L;
+
+    /**
+     * the only instance
+     */
+    private static final RequiredSpaceMemo INSTANCE = new RequiredSpaceMemo();
+
+    /**
+     * incremented whenever remembered totals may have become wrong
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * the totals by node name
+     */
+    private final ConcurrentMap<String, Totals> totals = new ConcurrentHashMap<String, Totals>();
+
+    /**
+     * the space the running builds still write by node name
+     */
+    private final ConcurrentMap<String, Running> running = new ConcurrentHashMap<String, Running>();
+
+    private RequiredSpaceMemo() {
+    }
+
+    /**
+     * Returns the only instance of the memo.
+     * @return the memo
+     */
+    public static RequiredSpaceMemo get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Forgets all totals. Called when the workspaces of a node or the space needed by a project have changed.
+     */
+    public void invalidate() {
+        this.generation.incrementAndGet();
+    }
+
+    /**
+     * Returns the generation of the totals, which changes whenever remembered totals may have become wrong.
+     *
+     * @return the generation
+     */
+    public long getGeneration() {
+        return this.generation.get();
+    }
+
+    /**
+     * Returns the totals of the given node, computing them only if they are not remembered or out of date.
+     *
+     * @param nodeName the name of the node
+     * @param workspaces the project names by workspace directory name
+     * @param customWorkspaces the project names by custom workspace
+     * @param snapshot the free space of the node, knowing the file stores of the workspace locations
+     * @param projectSpace resolves the space needed by the projects
+     * @return the totals
+     */
+    Totals getTotals(String nodeName, Map<String, String> workspaces, Map<String, String> customWorkspaces,
+                     FreeSpaceCache.Snapshot snapshot, RequiredSpace.ProjectSpace projectSpace) {
+        // read before computing, so an invalidation while computing is not lost
+        long currentGeneration = this.generation.get();
+        Totals nodeTotals = this.totals.get(nodeName);
+
+        if (nodeTotals == null || nodeTotals.generation != currentGeneration || nodeTotals.snapshot != snapshot
+                || nodeTotals.projectSpace != projectSpace) {
+            nodeTotals = new Totals(currentGeneration, snapshot, projectSpace, workspaces, customWorkspaces);
+            this.totals.put(nodeName, nodeTotals);
+        }
+
+        return nodeTotals;
+    }
+
+    /**
+     * Returns the space the builds running on the given node still have to write to their workspaces on the given
+     * file store, computing it only if it is not remembered or older than {@link #RUNNING_INTERVAL}. A build is
+     * expected to write the space its project needs evenly over its estimated duration.
+     *
+     * @param nodeName the name of the node
+     * @param store the file store or null for the file store of the slave root
+     * @param snapshot the free space of the node, knowing the file stores of the workspace locations
+     * @param projectSpace resolves the space needed by the projects
+     * @return the space in bytes, 0 if Jenkins is not running
+     */
+    long getRunningSpaceNeeded(String nodeName, String store, FreeSpaceCache.Snapshot snapshot,
+                               RequiredSpace.ProjectSpace projectSpace) {
+        long now = System.currentTimeMillis();
+        Running nodeRunning = this.running.get(nodeName);
+
+        if (nodeRunning == null || nodeRunning.snapshot != snapshot || nodeRunning.projectSpace != projectSpace
+                || now - nodeRunning.computed >= RUNNING_INTERVAL || now < nodeRunning.computed) {
+            nodeRunning = new Running(now, snapshot, projectSpace, computeRunning(nodeName, snapshot, projectSpace, now));
+            this.running.put(nodeName, nodeRunning);
+        }
+
+        Long spaceNeeded = nodeRunning.stores.get(store);
+        return spaceNeeded != null ? spaceNeeded : 0L;
+    }
+
+    /**
+     * Returns the space the builds running on the given node still have to write, by file store.
+     */
+    private static Map<String, Long> computeRunning(String nodeName, FreeSpaceCache.Snapshot snapshot,
+                                                    RequiredSpace.ProjectSpace projectSpace, long now) {
+        Jenkins jenkins = Jenkins.getInstance();
+        Computer computer = jenkins != null ? jenkins.getComputer(nodeName) : null;
+
+        if (computer == null) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Long> stores = new HashMap<String, Long>();
+
+        for (Executor executor : computer.getExecutors()) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+
+            if (!(executable instanceof AbstractBuild)) {
+                continue;
+            }
+
+            AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) executable;
+            AbstractProject<?, ?> project = build.getProject();
+
+            // a custom workspace that did not exist is created below the workspace directory's file store
+            String store = snapshot.getStore(SpaceLeftQueueTaskDispatcher.getLocation(project));
+            if (store == null) {
+                store = snapshot.getStore(SpaceProbe.DEFAULT_LOCATION);
+            }
+
+            long remaining = getRemainingSpaceNeeded(projectSpace.getSpaceNeeded(project.getFullName()),
+                    now - build.getTimeInMillis(), build.getEstimatedDuration());
+            Long storeRemaining = stores.get(store);
+            stores.put(store, storeRemaining == null ? remaining : storeRemaining + remaining);
+        }
+
+        return stores;
+    }
+
+    /**
+     * Returns the part of the space needed by a build that it still has to write, expecting it to write evenly
+     * over its estimated duration.
+     *
+     * @param spaceNeeded the space needed by the project of the build in bytes
+     * @param elapsed the time in milliseconds the build has been running
+     * @param duration the estimated duration of the build in milliseconds or -1, if it is not known
+     * @return the space in bytes, all of it if the duration is not known
+     */
+    static long getRemainingSpaceNeeded(long spaceNeeded, long elapsed, long duration) {
+        if (duration <= 0L) {
+            return spaceNeeded;
+        }
+        return (long) ((double) spaceNeeded * Math.max(0L, duration - Math.max(0L, elapsed)) / duration);
+    }
+
+    /**
+     * Forgets the given node.
+     *
+     * @param nodeName the name of the node
+     */
+    public void removeNode(String nodeName) {
+        this.totals.remove(nodeName);
+        this.running.remove(nodeName);
+    }
+
+    /**
+     * The space the builds running on a node still write, by file store.
+     */
+    private static final class Running {
+        private final long computed;
+
+        private final FreeSpaceCache.Snapshot snapshot;
+
+        private final RequiredSpace.ProjectSpace projectSpace;
+
+        /**
+         * the space by file store, the null key is the file store of the slave root
+         */
+        private final Map<String, Long> stores;
+
+        Running(long computed, FreeSpaceCache.Snapshot snapshot, RequiredSpace.ProjectSpace projectSpace,
+                Map<String, Long> stores) {
+            this.computed = computed;
+            this.snapshot = snapshot;
+            this.projectSpace = projectSpace;
+            this.stores = stores;
+        }
+    }
+
+    /**
+     * The required space of the workspaces of a node, by file store.
+     */
+    static final class Totals {
+        private final long generation;
+
+        private final FreeSpaceCache.Snapshot snapshot;
+
+        private final RequiredSpace.ProjectSpace projectSpace;
+
+        /**
+         * the totals by file store, the null key is the file store of the slave root
+         */
+        private final Map<String, StoreTotals> stores = new HashMap<String, StoreTotals>();
+
+        /**
+         * the required space of all workspaces of a project, by project name
+         */
+        private final Map<String, Long> projects = new TreeMap<String, Long>();
+
+        Totals(long generation, FreeSpaceCache.Snapshot snapshot, RequiredSpace.ProjectSpace projectSpace,
+               Map<String, String> workspaces, Map<String, String> customWorkspaces) {
+            this.generation = generation;
+            this.snapshot = snapshot;
+            this.projectSpace = projectSpace;
+
+            StoreTotals defaultStore = this.getStoreTotals(snapshot.getStore(SpaceProbe.DEFAULT_LOCATION));
+            for (Map.Entry<String, String> workspace : workspaces.entrySet()) {
+                // only the workspace directory named like the project is excluded for it, not the @2 copies
+                long spaceNeeded = projectSpace.getSpaceNeeded(workspace.getValue());
+                defaultStore.add(workspace.getKey(), spaceNeeded);
+                this.addProject(workspace.getValue(), spaceNeeded);
+            }
+
+            for (Map.Entry<String, String> customWorkspace : customWorkspaces.entrySet()) {
+                long spaceNeeded = projectSpace.getSpaceNeeded(customWorkspace.getValue());
+                this.getStoreTotals(snapshot.getStore(customWorkspace.getKey())).add(customWorkspace.getValue(), spaceNeeded);
+                this.addProject(customWorkspace.getValue(), spaceNeeded);
+            }
+        }
+
+        private void addProject(String projectName, long spaceNeeded) {
+            Long projectTotal = this.projects.get(projectName);
+            this.projects.put(projectName, projectTotal == null ? spaceNeeded : projectTotal + spaceNeeded);
+        }
+
+        private StoreTotals getStoreTotals(String store) {
+            StoreTotals storeTotals = this.stores.get(store);
+
+            if (storeTotals == null) {
+                storeTotals = new StoreTotals();
+                this.stores.put(store, storeTotals);
+            }
+            return storeTotals;
+        }
+
+        /**
+         * Returns the required space of the workspaces on the given file store.
+         *
+         * @param store the file store or null for the file store of the slave root
+         * @param currentProjectName the name of the project whose workspace is not counted or null
+         * @return the required space
+         */
+        long getRequiredSpace(String store, String currentProjectName) {
+            StoreTotals storeTotals = this.stores.get(store);
+
+            if (storeTotals == null) {
+                return 0L;
+            }
+
+            long requiredSpace = storeTotals.total;
+
+            if (currentProjectName != null) {
+                Long share = storeTotals.shares.get(currentProjectName);
+                if (share != null) {
+                    requiredSpace -= share;
+                }
+            }
+
+            return requiredSpace;
+        }
+
+        /**
+         * @return the required space of the workspaces on all file stores
+         */
+        long getRequiredSpace() {
+            long requiredSpace = 0L;
+
+            for (StoreTotals storeTotals : this.stores.values()) {
+                requiredSpace += storeTotals.total;
+            }
+            return requiredSpace;
+        }
+
+        /**
+         * @return the file stores with workspaces, the null key is the file store of the slave root
+         */
+        Set<String> getStores() {
+            return Collections.unmodifiableSet(this.stores.keySet());
+        }
+
+        /**
+         * @return the required space of the workspaces of every project, by project name
+         */
+        Map<String, Long> getProjects() {
+            return Collections.unmodifiableMap(this.projects);
+        }
+    }
+
+    /**
+     * The required space of the workspaces on a file store.
+     */
+    private static final class StoreTotals {
+        private long total;
+
+        /**
+         * the space that is not counted for an item of the project, by project name
+         */
+        private final Map<String, Long> shares = new HashMap<String, Long>();
+
+        void add(String name, long spaceNeeded) {
+            this.total += spaceNeeded;
+
+            Long share = this.shares.get(name);
+            this.shares.put(name, share == null ? spaceNeeded : share + spaceNeeded);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package hudson.plugins.space_left;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.LoadBalancer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.model.WorkspaceListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.MappingWorksheet;
+import jenkins.model.Jenkins;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Decorates the load balancer of the queue to reserve the space of an item on the nodes it is handed to.
+ * The reservation is released, when the build is about to use its workspace, as the workspace is counted by
+ * {@link RequiredSpace} from then on, or when the build completes without having used a workspace. No space is
+ * reserved for a project that has its workspace on the node already and is not building, as the workspace is reused.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public class ReservingLoadBalancer extends LoadBalancer {
+    /**
+     * the started builds that still hold their reservation
+     */
+    private static final Map<AbstractBuild<?, ?>, Boolean> HOLDING =
+            Collections.synchronizedMap(new WeakHashMap<AbstractBuild<?, ?>, Boolean>());
+
+    /**
+     * the decorated load balancer
+     */
+    private final LoadBalancer delegate;
+
+    public ReservingLoadBalancer(LoadBalancer delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public MappingWorksheet.Mapping map(Queue.Task task, MappingWorksheet worksheet) {
+        MappingWorksheet.Mapping mapping = this.delegate.map(task, worksheet);
+
+        if (mapping != null && task instanceof AbstractProject) {
+            AbstractProject project = (AbstractProject) task;
+            long spaceNeeded = getSpaceNeeded(project, worksheet.item);
+
+            for (int i = 0; i < mapping.size(); i++) {
+                Node node = mapping.assigned(i).node;
+                if (node instanceof Slave && !hasWorkspace(node.getNodeName(), project)) {
+                    SpaceReservations.get().reserve(node.getNodeName(), project.getFullName(), spaceNeeded);
+                }
+            }
+        }
+
+        return mapping;
+    }
+
+    /**
+     * Returns true, if the given project has an indexed workspace on the given node, that a build will reuse. A
+     * project that is building may get another workspace.
+     *
+     * @param nodeName the name of the node
+     * @param project the project
+     * @return true, if the workspace of the project is counted by {@link RequiredSpace} already
+     */
+    static boolean hasWorkspace(String nodeName, AbstractProject<?, ?> project) {
+        Map<String, String> workspaces = WorkspaceIndex.get().getWorkspaces(nodeName);
+        return workspaces != null && !project.isBuilding() && workspaces.containsValue(project.getFullName());
+    }
+
+    /**
+     * Releases the reservation of the given build, if it has not been released yet.
+     *
+     * @param build the build
+     * @param workspace the workspace of the build or null, if it is not known
+     */
+    static void release(AbstractBuild<?, ?> build, FilePath workspace) {
+        Node node = build.getBuiltOn();
+
+        if (node == null || HOLDING.remove(build) == null) {
+            return;
+        }
+
+        // counted before the reservation goes, whichever listener is called first
+        WorkspaceIndex.get().add(build, workspace);
+        SpaceReservations.get().release(node.getNodeName(), build.getProject().getFullName());
+    }
+
+    /**
+     * Returns the space needed by the given item, taken from the REQUIRED_SPACE parameter or the SpaceLeftProperty.
+     *
+     * @param project the project of the item
+     * @param item the item
+     * @return the space needed in bytes
+     */
+    @SuppressWarnings("unchecked")
+    static long getSpaceNeeded(AbstractProject project, Queue.Item item) {
+        long spaceNeeded = item != null ? SpaceLeftQueueTaskDispatcher.getParameterSpaceNeeded(item) : -1L;
+
+        if (spaceNeeded > -1L) {
+            return spaceNeeded;
+        }
+
+        SpaceLeftProperty spaceLeftProperty = (SpaceLeftProperty) project.getProperty(SpaceLeftProperty.class);
+        return spaceLeftProperty != null ? spaceLeftProperty.getSpaceNeeded() : 0L;
+    }
+
+    /**
+     * Decorates the load balancer of the queue, after all jobs are loaded. If a {@link HeadroomLoadBalancer} strategy
+     * is configured, the items are placed by it and the reservations are made for the nodes it has chosen.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void install() {
+        Queue queue = Jenkins.getInstance().getQueue();
+        LoadBalancer loadBalancer = queue.getLoadBalancer();
+
+        if (HeadroomLoadBalancer.isEnabled(HeadroomLoadBalancer.STRATEGY)) {
+            loadBalancer = new HeadroomLoadBalancer(loadBalancer, HeadroomLoadBalancer.STRATEGY);
+        }
+
+        queue.setLoadBalancer(new ReservingLoadBalancer(loadBalancer));
+    }
+
+    /**
+     * Remembers the started builds until their reservation is released, so it is released once.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<AbstractBuild> {
+        public RunListenerImpl() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onStarted(AbstractBuild build, TaskListener listener) {
+            HOLDING.put(build, Boolean.TRUE);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            release(build, build.getWorkspace());
+        }
+    }
+
+    /**
+     * Releases the reservation of a build when it is about to use its workspace, as the workspace of a build is not
+     * known when it starts.
+     */
+    @Extension
+    public static final class WorkspaceListenerImpl extends WorkspaceListener {
+        @Override
+        public void beforeUse(AbstractBuild b, FilePath workspace, BuildListener listener) {
+            release(b, workspace);
+        }
+    }
+}
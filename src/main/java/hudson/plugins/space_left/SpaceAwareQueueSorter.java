@@ -0,0 +1,416 @@
+package hudson.plugins.space_left;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Slave;
+import hudson.model.queue.QueueSorter;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sorts the buildable items by how well they fit the free space left on the nodes they may run on, when some of
+ * them do not fit any of their nodes: the items that fit come first, the smaller ones before the bigger ones. So the
+ * items that can run are not kept waiting behind a big one that cannot. The space an item needs counts the less the
+ * longer it waits, so big items get their turn, too. Items of equal size keep the order of the decorated sorter.
+ * <p>
+ * An item that does not fit and has waited longer than the starvation time goes before all others and holds the
+ * free space of the node with the most space among its nodes, once its builds have ended and its workspaces have been
+ * reclaimed: no item creating a new workspace is taken by that node, until the waiting item fits. Otherwise the items
+ * that fit would keep using up the space it waits for. An item that does not fit that space either holds no node, and
+ * an item holds its node for the maximum hold time at most.
+ * <p>
+ * The free space of the nodes is taken from the cache only and computed again when the cached state has changed.
+ * Enabled by the system property <tt>hudson.plugins.space_left.SpaceAwareQueueSorter.enabled</tt>.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public class SpaceAwareQueueSorter extends QueueSorter {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(SpaceAwareQueueSorter.class.getName());
+
+    /**
+     * True, if the sorter is installed.
+     */
+    static final boolean ENABLED = Boolean.getBoolean(SpaceAwareQueueSorter.class.getName() + ".enabled");
+
+    /**
+     * Time in milliseconds of waiting after which the space needed by an item counts half.
+     */
+    static final long AGING_INTERVAL = Long.getLong(SpaceAwareQueueSorter.class.getName() + ".agingInterval", 600000L);
+
+    /**
+     * Time in milliseconds of waiting after which an item that does not fit goes first and holds the space of a node.
+     */
+    static final long STARVATION_TIME = Long.getLong(SpaceAwareQueueSorter.class.getName() + ".starvationTime", 3600000L);
+
+    /**
+     * Time in milliseconds a starving item holds the space of a node at most.
+     */
+    static final long MAX_HOLD_TIME = Long.getLong(SpaceAwareQueueSorter.class.getName() + ".maxHoldTime", 7200000L);
+
+    /**
+     * the space held for starving items by node name, replaced with every sort
+     */
+    private static volatile Map<String, Hold> holds = Collections.emptyMap();
+
+    /**
+     * the times the starving items have started starving by item id, replaced with every sort
+     */
+    private static Map<Integer, Long> starvingSince = Collections.emptyMap();
+
+    /**
+     * the free space left on the nodes, as computed for the last sort
+     */
+    private static volatile NodeHeadrooms lastHeadrooms;
+
+    /**
+     * the decorated sorter or null, if the items are sorted by the time they have been queued
+     */
+    private final QueueSorter delegate;
+
+    public SpaceAwareQueueSorter(QueueSorter delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void sortBuildableItems(List<Queue.BuildableItem> buildables) {
+        if (this.delegate != null) {
+            this.delegate.sortBuildableItems(buildables);
+        }
+
+        if (buildables.isEmpty()) {
+            holds = Collections.emptyMap();
+            starvingSince = Collections.emptyMap();
+            return;
+        }
+
+        NodeHeadrooms headrooms = getNodeHeadrooms();
+        long now = System.currentTimeMillis();
+        final Map<Queue.BuildableItem, Rank> ranks = new IdentityHashMap<Queue.BuildableItem, Rank>();
+        Map<Label, Best> bests = new HashMap<Label, Best>();
+        boolean tight = false;
+
+        for (Queue.BuildableItem item : buildables) {
+            Label label = item.getAssignedLabel();
+            Best best = bests.get(label);
+
+            if (best == null) {
+                best = headrooms.getBest(label);
+                bests.put(label, best);
+            }
+
+            long spaceNeeded = item.task instanceof AbstractProject
+                    ? ReservingLoadBalancer.getSpaceNeeded((AbstractProject) item.task, item) : 0L;
+            Rank rank = new Rank(spaceNeeded, now - item.getInQueueSince(), best.headroom);
+
+            ranks.put(item, rank);
+            tight |= !rank.fits;
+        }
+
+        // as long as everything fits, the space is not what holds the items back
+        if (!tight) {
+            holds = Collections.emptyMap();
+            starvingSince = Collections.emptyMap();
+            return;
+        }
+
+        LOG.log(Level.FINE, "sorting " + buildables.size() + " items by the space they need");
+
+        // stable, so items that compare equal keep the order of the decorated sorter
+        Collections.sort(buildables, new Comparator<Queue.BuildableItem>() {
+            public int compare(Queue.BuildableItem o1, Queue.BuildableItem o2) {
+                return ranks.get(o1).compareTo(ranks.get(o2));
+            }
+        });
+
+        // the starving items come first, the longest waiting one holds the node first
+        Map<String, Hold> newHolds = new HashMap<String, Hold>();
+        Map<Integer, Long> newStarvingSince = new HashMap<Integer, Long>();
+
+        for (Queue.BuildableItem item : buildables) {
+            Rank rank = ranks.get(item);
+
+            if (!rank.starving) {
+                break;
+            }
+
+            Long since = starvingSince.get(item.id);
+            if (since == null) {
+                since = now;
+            }
+            newStarvingSince.put(item.id, since);
+
+            Best best = bests.get(item.getAssignedLabel());
+            if (isHolding(rank.spaceNeeded, best.capacity, now - since) && !newHolds.containsKey(best.capacityNodeName)) {
+                newHolds.put(best.capacityNodeName, new Hold(item.id, rank.spaceNeeded));
+            }
+        }
+
+        holds = newHolds;
+        starvingSince = newStarvingSince;
+    }
+
+    /**
+     * Returns true, if a starving item holds the space of its node: it fits the node once the builds on it have
+     * ended and its workspaces have been reclaimed, and it has not held it for the maximum hold time yet.
+     *
+     * @param spaceNeeded the space needed by the item in bytes
+     * @param capacity the space of the node once drained and reclaimed in bytes or null, if no node is known
+     * @param holding the time in milliseconds the item has been starving
+     * @return true, if the item holds the node
+     */
+    static boolean isHolding(long spaceNeeded, Long capacity, long holding) {
+        return capacity != null && spaceNeeded <= capacity && holding <= MAX_HOLD_TIME;
+    }
+
+    /**
+     * Returns the space held on the given node for a starving item other than the given one.
+     *
+     * @param nodeName the name of the node
+     * @param itemId the id of the item asking
+     * @return the held space in bytes, 0 if no space is held for another item
+     */
+    static long getHeldSpace(String nodeName, int itemId) {
+        Hold hold = holds.get(nodeName);
+        return hold != null && hold.itemId != itemId ? hold.space : 0L;
+    }
+
+    /**
+     * Returns the free space left on the online nodes, computed again only if the cached state has changed since
+     * the last sort.
+     */
+    private static NodeHeadrooms getNodeHeadrooms() {
+        String version = FleetHeadroom.getETag();
+        NodeHeadrooms headrooms = lastHeadrooms;
+
+        if (headrooms != null && headrooms.version.equals(version)) {
+            return headrooms;
+        }
+
+        Map<String, Long> nodeHeadrooms = new HashMap<String, Long>();
+        Map<String, Long> nodeCapacities = new HashMap<String, Long>();
+        Jenkins jenkins = Jenkins.getInstance();
+        List<Node> nodes = new ArrayList<Node>(jenkins.getNodes());
+        nodes.add(jenkins);
+
+        for (Node node : nodes) {
+            Computer computer = node.toComputer();
+
+            if (computer == null || computer.isOffline() || node.getNumExecutors() <= 0) {
+                continue;
+            }
+
+            // the free space of the master is not checked
+            if (!(node instanceof Slave)) {
+                nodeHeadrooms.put(node.getNodeName(), Long.MAX_VALUE);
+                continue;
+            }
+
+            Long headroom = SpaceLeftQueueTaskDispatcher.getHeadroom(node.getNodeName(), 0L,
+                    SpaceProbe.DEFAULT_LOCATION, null, -1L, ProjectSpaceCache.get());
+            if (headroom != null) {
+                nodeHeadrooms.put(node.getNodeName(), headroom);
+                nodeCapacities.put(node.getNodeName(),
+                        SpaceLeftQueueTaskDispatcher.getCapacity(node.getNodeName(), ProjectSpaceCache.get()));
+            }
+        }
+
+        headrooms = new NodeHeadrooms(version, nodeHeadrooms, nodeCapacities);
+        lastHeadrooms = headrooms;
+        return headrooms;
+    }
+
+    /**
+     * Decorates the sorter of the queue, if enabled. The sorter core would install by default is decorated, if
+     * it has not been installed yet.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void install() {
+        if (!ENABLED) {
+            return;
+        }
+
+        Queue queue = Jenkins.getInstance().getQueue();
+        QueueSorter sorter = queue.getSorter();
+
+        if (sorter == null && !QueueSorter.all().isEmpty()) {
+            sorter = QueueSorter.all().get(0);
+        }
+
+        queue.setSorter(new SpaceAwareQueueSorter(sorter));
+    }
+
+    /**
+     * The free space left on the online nodes with known free space.
+     */
+    static final class NodeHeadrooms {
+        /**
+         * the version of the cached state the free space has been computed from
+         */
+        private final String version;
+
+        /**
+         * the free space left by node name
+         */
+        private final Map<String, Long> headrooms;
+
+        /**
+         * the space of the slaves once drained and reclaimed by node name
+         */
+        private final Map<String, Long> capacities;
+
+        NodeHeadrooms(String version, Map<String, Long> headrooms, Map<String, Long> capacities) {
+            this.version = version;
+            this.headrooms = headrooms;
+            this.capacities = capacities;
+        }
+
+        /**
+         * Returns the most free space left and the most space once drained and reclaimed among the nodes of the
+         * given label.
+         *
+         * @param label the label or null for the nodes taking any item
+         * @return the best of the nodes, its values are null if the free space of no node of the label is known
+         */
+        Best getBest(Label label) {
+            Best best = new Best();
+
+            if (label != null) {
+                for (Node node : label.getNodes()) {
+                    best.add(node.getNodeName(), this.headrooms.get(node.getNodeName()),
+                            this.capacities.get(node.getNodeName()));
+                }
+            } else {
+                Jenkins jenkins = Jenkins.getInstance();
+                for (Map.Entry<String, Long> headroom : this.headrooms.entrySet()) {
+                    Node node = headroom.getKey().length() > 0 ? jenkins.getNode(headroom.getKey()) : jenkins;
+                    if (node != null && node.getMode() != Node.Mode.EXCLUSIVE) {
+                        best.add(headroom.getKey(), headroom.getValue(), this.capacities.get(headroom.getKey()));
+                    }
+                }
+            }
+
+            return best;
+        }
+    }
+
+    /**
+     * The most free space left among some nodes and the node with the most space once drained and reclaimed.
+     * Only slaves are held, the free space of the master is not checked.
+     */
+    static final class Best {
+        private Long headroom;
+
+        private String capacityNodeName;
+
+        private Long capacity;
+
+        void add(String nodeName, Long nodeHeadroom, Long nodeCapacity) {
+            if (nodeHeadroom != null && (this.headroom == null || nodeHeadroom > this.headroom)) {
+                this.headroom = nodeHeadroom;
+            }
+
+            if (nodeCapacity != null && (this.capacity == null || nodeCapacity > this.capacity)) {
+                this.capacityNodeName = nodeName;
+                this.capacity = nodeCapacity;
+            }
+        }
+    }
+
+    /**
+     * The space of a node held for a starving item.
+     */
+    private static final class Hold {
+        private final int itemId;
+
+        private final long space;
+
+        Hold(int itemId, long space) {
+            this.itemId = itemId;
+            this.space = space;
+        }
+    }
+
+    /**
+     * The rank of an item: the starving items come first, the longest waiting first, then the items that fit and
+     * then the ones that do not, each of them by the space they need, aged by their waiting.
+     */
+    static final class Rank implements Comparable<Rank> {
+        /**
+         * true, if the item fits the node with the most free space left among its nodes
+         */
+        private final boolean fits;
+
+        /**
+         * true, if the item does not fit and has waited longer than the starvation time
+         */
+        private final boolean starving;
+
+        /**
+         * the space needed
+         */
+        private final long spaceNeeded;
+
+        /**
+         * the time in milliseconds the item has been waiting
+         */
+        private final long waited;
+
+        /**
+         * the space needed, reduced by the waiting
+         */
+        private final double agedSpaceNeeded;
+
+        /**
+         * @param spaceNeeded the space needed by the item in bytes
+         * @param waited the time in milliseconds the item has been waiting
+         * @param maxHeadroom the most free space left on the nodes of the item in bytes or null, if it is not known
+         */
+        Rank(long spaceNeeded, long waited, Long maxHeadroom) {
+            this.fits = maxHeadroom == null || spaceNeeded < maxHeadroom;
+            this.starving = !this.fits && waited >= STARVATION_TIME;
+            this.spaceNeeded = spaceNeeded;
+            this.waited = Math.max(0L, waited);
+            this.agedSpaceNeeded = (double) spaceNeeded * AGING_INTERVAL / (AGING_INTERVAL + this.waited);
+        }
+
+        boolean fits() {
+            return fits;
+        }
+
+        boolean isStarving() {
+            return starving;
+        }
+
+        public int compareTo(Rank o) {
+            if (this.group() != o.group()) {
+                return this.group() < o.group() ? -1 : 1;
+            }
+
+            if (this.starving) {
+                return this.waited > o.waited ? -1 : (this.waited == o.waited ? 0 : 1);
+            }
+            return Double.compare(this.agedSpaceNeeded, o.agedSpaceNeeded);
+        }
+
+        private int group() {
+            return this.starving ? 0 : (this.fits ? 1 : 2);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package hudson.plugins.space_left;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the last samples of the free space of every file store of a node and fits a linear trend to them, so the
+ * dispatcher can check the free space that is left when a build ends instead of the free space now.
+ * Only shrinking free space is projected, growing free space is taken as it is now.
+ * <p>
+ * The free space shrinks by what the running builds write to their workspaces as well, which the dispatcher has
+ * counted already with the required space of the indexed workspaces. Only the part of the decline beyond what the
+ * running builds on the file store still have to write is projected, so it is not subtracted twice.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class SpaceForecast {
+    /**
+     * The number of samples kept per file store.
+     */
+    static final int SAMPLES = Integer.getInteger(SpaceForecast.class.getName() + ".samples", 60);
+
+    /**
+     * The number of samples needed to fit a trend.
+     */
+    static final int MIN_SAMPLES = 5;
+
+    /**
+     * The key of the slave root, used for file stores that are not known.
+     */
+    static final String ROOT = "";
+
+    /**
+     * the only instance
+     */
+    private static final SpaceForecast INSTANCE = new SpaceForecast();
+
+    /**
+     * the samples by file store by node name
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, Samples>> samples = new ConcurrentHashMap<String, ConcurrentMap<String, Samples>>();
+
+    private SpaceForecast() {
+    }
+
+    /**
+     * Returns the only instance of the forecast.
+     * @return the forecast
+     */
+    public static SpaceForecast get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds the free space of the given snapshot to the samples of the node.
+     *
+     * @param nodeName the name of the node
+     * @param snapshot the free space of the node
+     */
+    public void record(String nodeName, FreeSpaceCache.Snapshot snapshot) {
+        ConcurrentMap<String, Samples> nodeSamples = this.samples.get(nodeName);
+
+        if (nodeSamples == null) {
+            nodeSamples = new ConcurrentHashMap<String, Samples>();
+            ConcurrentMap<String, Samples> existing = this.samples.putIfAbsent(nodeName, nodeSamples);
+            if (existing != null) {
+                nodeSamples = existing;
+            }
+        }
+
+        record(nodeSamples, ROOT, snapshot.getTimestamp(), snapshot.getUsableSpace());
+
+        for (Map.Entry<String, Long> store : snapshot.getStoreUsableSpace().entrySet()) {
+            record(nodeSamples, store.getKey(), snapshot.getTimestamp(), store.getValue());
+        }
+    }
+
+    private static void record(ConcurrentMap<String, Samples> nodeSamples, String store, long timestamp, Long usableSpace) {
+        if (usableSpace == null) {
+            return;
+        }
+
+        Samples storeSamples = nodeSamples.get(store);
+
+        if (storeSamples == null) {
+            storeSamples = new Samples(SAMPLES);
+            Samples existing = nodeSamples.putIfAbsent(store, storeSamples);
+            if (existing != null) {
+                storeSamples = existing;
+            }
+        }
+
+        storeSamples.add(timestamp, usableSpace);
+    }
+
+    /**
+     * Returns the trend of the free space of the given file store.
+     *
+     * @param nodeName the name of the node
+     * @param store the file store or null for the slave root
+     * @return the trend or null, if there are not enough samples
+     */
+    public Trend getTrend(String nodeName, String store) {
+        Map<String, Samples> nodeSamples = this.samples.get(nodeName);
+
+        if (nodeSamples == null) {
+            return null;
+        }
+
+        Samples storeSamples = nodeSamples.get(store != null ? store : ROOT);
+        return storeSamples != null ? storeSamples.getTrend() : null;
+    }
+
+    /**
+     * Returns the trends of all file stores of the given node.
+     *
+     * @param nodeName the name of the node
+     * @return the trends by file store, the slave root has the key {@link #ROOT}
+     */
+    public Map<String, Trend> getTrends(String nodeName) {
+        Map<String, Trend> trends = new TreeMap<String, Trend>();
+        Map<String, Samples> nodeSamples = this.samples.get(nodeName);
+
+        if (nodeSamples != null) {
+            for (Map.Entry<String, Samples> storeSamples : nodeSamples.entrySet()) {
+                Trend trend = storeSamples.getValue().getTrend();
+                if (trend != null) {
+                    trends.put(storeSamples.getKey(), trend);
+                }
+            }
+        }
+
+        return trends;
+    }
+
+    /**
+     * Returns by how much the free space of the given file store is expected to shrink within the given time.
+     *
+     * @param nodeName the name of the node
+     * @param store the file store or null for the slave root
+     * @param duration the time in milliseconds, e.g. the estimated duration of a build
+     * @return the expected decline in bytes, 0 if the free space is not shrinking or not known well enough
+     */
+    public long getDecline(String nodeName, String store, long duration) {
+        if (duration <= 0L) {
+            return 0L;
+        }
+
+        Trend trend = this.getTrend(nodeName, store);
+
+        if (trend == null || trend.getSlope() >= 0.0) {
+            return 0L;
+        }
+        return (long) (-trend.getSlope() * duration);
+    }
+
+    /**
+     * Returns by how much the free space of the given file store is expected to shrink within the given time,
+     * beyond what is explained by the given space already counted.
+     *
+     * @param nodeName the name of the node
+     * @param store the file store or null for the slave root
+     * @param duration the time in milliseconds, e.g. the estimated duration of a build
+     * @param explained the space in bytes the running builds still write, that is counted already
+     * @return the expected decline in bytes not explained, 0 if there is none
+     */
+    public long getDecline(String nodeName, String store, long duration, long explained) {
+        return Math.max(0L, this.getDecline(nodeName, store, duration) - Math.max(0L, explained));
+    }
+
+    /**
+     * Forgets the given node.
+     *
+     * @param nodeName the name of the node
+     */
+    public void removeNode(String nodeName) {
+        this.samples.remove(nodeName);
+    }
+
+    /**
+     * The last samples of a file store, in a ring buffer.
+     */
+    static final class Samples {
+        private final long[] timestamps;
+
+        private final long[] usableSpaces;
+
+        private int count;
+
+        private int next;
+
+        Samples(int size) {
+            this.timestamps = new long[size];
+            this.usableSpaces = new long[size];
+        }
+
+        synchronized void add(long timestamp, long usableSpace) {
+            // a snapshot is recorded once only
+            if (this.count > 0 && this.timestamps[(this.next + this.timestamps.length - 1) % this.timestamps.length] >= timestamp) {
+                return;
+            }
+
+            this.timestamps[this.next] = timestamp;
+            this.usableSpaces[this.next] = usableSpace;
+            this.next = (this.next + 1) % this.timestamps.length;
+            this.count = Math.min(this.count + 1, this.timestamps.length);
+        }
+
+        /**
+         * Fits a line to the samples by least squares.
+         */
+        synchronized Trend getTrend() {
+            if (this.count < MIN_SAMPLES) {
+                return null;
+            }
+
+            int first = (this.next + this.timestamps.length - this.count) % this.timestamps.length;
+            int last = (this.next + this.timestamps.length - 1) % this.timestamps.length;
+            long origin = this.timestamps[first];
+            double meanTime = 0.0;
+            double meanSpace = 0.0;
+
+            for (int i = 0; i < this.count; i++) {
+                int index = (first + i) % this.timestamps.length;
+                meanTime += this.timestamps[index] - origin;
+                meanSpace += this.usableSpaces[index];
+            }
+            meanTime /= this.count;
+            meanSpace /= this.count;
+
+            double covariance = 0.0;
+            double variance = 0.0;
+
+            for (int i = 0; i < this.count; i++) {
+                int index = (first + i) % this.timestamps.length;
+                double time = this.timestamps[index] - origin - meanTime;
+                covariance += time * (this.usableSpaces[index] - meanSpace);
+                variance += time * time;
+            }
+
+            double slope = variance > 0.0 ? covariance / variance : 0.0;
+            return new Trend(this.usableSpaces[last], this.timestamps[last], slope);
+        }
+    }
+
+    /**
+     * The trend of the free space of a file store.
+     */
+    public static final class Trend {
+        private final long usableSpace;
+
+        private final long timestamp;
+
+        /**
+         * the change of the free space in bytes per millisecond
+         */
+        private final double slope;
+
+        Trend(long usableSpace, long timestamp, double slope) {
+            this.usableSpace = usableSpace;
+            this.timestamp = timestamp;
+            this.slope = slope;
+        }
+
+        /**
+         * @return the last sampled free space in bytes
+         */
+        public long getUsableSpace() {
+            return usableSpace;
+        }
+
+        /**
+         * @return the time of the last sample
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public double getSlope() {
+            return slope;
+        }
+
+        /**
+         * @return the change of the free space in bytes per hour
+         */
+        public long getChangePerHour() {
+            return (long) (this.slope * 3600000.0);
+        }
+
+        /**
+         * @return the time in milliseconds until the file store is full, counted from the last sample,
+         * or -1 if the free space is not shrinking
+         */
+        public long getTimeToFull() {
+            if (this.slope >= 0.0) {
+                return -1L;
+            }
+            return (long) (this.usableSpace / -this.slope);
+        }
+    }
+}
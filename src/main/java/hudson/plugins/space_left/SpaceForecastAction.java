@@ -0,0 +1,74 @@
+package hudson.plugins.space_left;
+
+import hudson.Extension;
+import hudson.Functions;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Slave;
+import hudson.model.TransientComputerActionFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Shows the trend of the free space and the time until full of every file store on the page of a slave.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public class SpaceForecastAction implements Action {
+    /**
+     * the slave
+     */
+    private final Computer computer;
+
+    public SpaceForecastAction(Computer computer) {
+        this.computer = computer;
+    }
+
+    public Computer getComputer() {
+        return computer;
+    }
+
+    public String getIconFileName() {
+        return "graph.gif";
+    }
+
+    public String getDisplayName() {
+        return Messages.SpaceForecast_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "space-forecast";
+    }
+
+    /**
+     * @return the trends by file store, the slave root has an empty name
+     */
+    public Map<String, SpaceForecast.Trend> getTrends() {
+        return SpaceForecast.get().getTrends(this.computer.getName());
+    }
+
+    /**
+     * @param trend the trend of a file store
+     * @return the time until the file store is full as text, or null if it is not filling up
+     */
+    public String getTimeToFull(SpaceForecast.Trend trend) {
+        long timeToFull = trend.getTimeToFull();
+        return timeToFull >= 0L ? Functions.getTimeSpanString(timeToFull) : null;
+    }
+
+    /**
+     * Adds the forecast to the pages of the slaves.
+     */
+    @Extension
+    public static final class Factory extends TransientComputerActionFactory {
+        @Override
+        public Collection<? extends Action> createFor(Computer target) {
+            if (!(target.getNode() instanceof Slave)) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new SpaceForecastAction(target));
+        }
+    }
+}
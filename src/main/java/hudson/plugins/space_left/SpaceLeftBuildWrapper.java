@@ -0,0 +1,146 @@
+package hudson.plugins.space_left;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples the size of the workspace and the free space of its file store on the slave while the build runs and
+ * records the peak and the final size on the build. The required space is estimated from the peak, as the
+ * workspace must have room for the intermediate files, too.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public class SpaceLeftBuildWrapper extends BuildWrapper {
+    /**
+     * Name of the build parameter containing the least free space of the file store of the workspace.
+     */
+    static final String STORE_MIN_USABLE_SPACE_PARAMETER = "workspaceStoreMinUsableSpace";
+
+    /**
+     * the default time in seconds between two samples
+     */
+    static final int DEFAULT_INTERVAL = 10;
+
+    /**
+     * the time in seconds between two samples
+     */
+    private final int interval;
+
+    /**
+     * true, if the allocated disk space is measured instead of the apparent size
+     */
+    private final boolean allocated;
+
+    public SpaceLeftBuildWrapper() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    public SpaceLeftBuildWrapper(int interval) {
+        this(interval, false);
+    }
+
+    public SpaceLeftBuildWrapper(int interval, boolean allocated) {
+        this.interval = interval > 0 ? interval : DEFAULT_INTERVAL;
+        this.allocated = allocated;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public boolean isAllocated() {
+        return allocated;
+    }
+
+    @Override
+    public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+        final FilePath workspace = build.getWorkspace();
+        final String id = build.getParent().getFullName() + "#" + build.getNumber();
+
+        if (workspace == null) {
+            return new Environment() {
+            };
+        }
+
+        // the build does not fail because its workspace cannot be measured
+        try {
+            workspace.getChannel().call(new PeakSampler.Start(id, workspace.getRemote(), this.interval * 1000L, this.allocated));
+        } catch (IOException e) {
+            listener.getLogger().println("could not start sampling the workspace size: " + e);
+            return new Environment() {
+            };
+        }
+
+        return new Environment() {
+            @Override
+            public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
+                try {
+                    PeakSampler.Peak peak = workspace.getChannel().call(new PeakSampler.Stop(id));
+
+                    if (peak == null) {
+                        return true;
+                    }
+
+                    if (peak.getFinalSize() == WorkspaceSizeWalker.UNSUPPORTED) {
+                        listener.getLogger().println("allocated disk space is not supported on this slave, du is not available");
+                        return true;
+                    }
+
+                    listener.getLogger().println("workspace size: " + peak.getFinalSize() + ", peak: " + peak.getPeakSize());
+                    record(build, peak);
+                } catch (IOException e) {
+                    listener.getLogger().println("could not record the workspace size: " + e);
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Adds the sampled sizes to the build.
+     */
+    static void record(AbstractBuild<?, ?> build, PeakSampler.Peak peak) throws IOException {
+        List<ParameterValue> params = new ArrayList<ParameterValue>();
+        params.add(new StringParameterValue(RequiredSpaceEstimator.WORKSPACE_SIZE_PARAMETER, String.valueOf(peak.getFinalSize())));
+        params.add(new StringParameterValue(RequiredSpaceEstimator.WORKSPACE_PEAK_SIZE_PARAMETER, String.valueOf(peak.getPeakSize())));
+
+        if (peak.getMinUsableSpace() >= 0L) {
+            params.add(new StringParameterValue(STORE_MIN_USABLE_SPACE_PARAMETER, String.valueOf(peak.getMinUsableSpace())));
+        }
+
+        build.addAction(new ParametersAction(params));
+        build.save();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildWrapperDescriptor {
+        @Override
+        public boolean isApplicable(AbstractProject<?, ?> item) {
+            return true;
+        }
+
+        public String getDisplayName() {
+            return "Sample the peak workspace size during the build";
+        }
+
+        @Override
+        public SpaceLeftBuildWrapper newInstance(StaplerRequest req, JSONObject data) {
+            return new SpaceLeftBuildWrapper(data.optInt("interval", DEFAULT_INTERVAL), data.optBoolean("allocated"));
+        }
+    }
+}
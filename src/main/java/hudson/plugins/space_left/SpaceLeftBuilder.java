@@ -3,15 +3,11 @@ package hudson.plugins.space_left;
 
 import hudson.*;
 import hudson.model.*;
-import hudson.slaves.EnvironmentVariablesNodeProperty;
 import hudson.tasks.Builder;
-import hudson.tasks.Shell;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.StaplerRequest;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -24,30 +20,58 @@ import java.util.List;
  */
 public class SpaceLeftBuilder extends Builder {
 
+    /**
+     * the directory below the slave root containing the manifests of the incremental measurements
+     */
+    private static final String MANIFEST_DIR = "space-left";
+
+    /**
+     * true, if only directories modified since the last build are measured again
+     */
+    private final boolean incremental;
+
+    /**
+     * true, if the allocated disk space is measured instead of the apparent size
+     */
+    private final boolean allocated;
+
+    public SpaceLeftBuilder() {
+        this(false);
+    }
+
+    public SpaceLeftBuilder(boolean incremental) {
+        this(incremental, false);
+    }
+
+    public SpaceLeftBuilder(boolean incremental, boolean allocated) {
+        this.incremental = incremental;
+        this.allocated = allocated;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isAllocated() {
+        return allocated;
+    }
 
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
         listener.getLogger().println("getting workspace size...");
 
         FilePath workspace = build.getWorkspace();
-        Node node = build.getBuiltOn();
-
-        Shell s = new Shell("#!/bin/bash\ndu -sb");
-        FilePath scriptFile = s.createScriptFile(workspace);
 
-        OutputStream out = new ByteArrayOutputStream();
+        long measured = workspace.act(new WorkspaceSizeWalker(WorkspaceSizeWalker.PARALLELISM, this.getManifest(build), this.allocated));
 
-        int r = launcher.launch().cmds(s.buildCommandLine(scriptFile)).envs(getEnvironment(node)).stdout(out).pwd(workspace).join();
+        if (measured == WorkspaceSizeWalker.UNSUPPORTED) {
+            listener.getLogger().println("allocated disk space is not supported on this slave, du is not available");
+            return true;
+        }
 
-        String size = out.toString();
-        size = size.replaceAll("\\D", "");
+        String size = String.valueOf(measured);
 
         listener.getLogger().println("workspace size: " + size);
-        listener.getLogger().println("launch result was: " + r);
-
-        if (r != 0) {
-            throw new AbortException("Setup script failed");
-        }
 
         StringParameterValue value = new StringParameterValue("workspaceSize", size);
         List<ParameterValue> params = new ArrayList<ParameterValue>();
@@ -66,17 +90,52 @@ public class SpaceLeftBuilder extends Builder {
         }
 
         public SpaceLeftBuilder newInstance(StaplerRequest req, JSONObject data) {
-            return new SpaceLeftBuilder();
+            return new SpaceLeftBuilder(data.optBoolean("incremental"), data.optBoolean("allocated"));
         }
     }
 
     /**
-     * Returns the environment variables for the given node.
-     * @param node node to get the environment variables from
-     * @return the environment variables for the given node
+     * Returns the path of the manifest of the workspace of the given build on the slave.
+     * @param build the build to measure the workspace of
+     * @return the path of the manifest or null, if the workspace is measured completely
      */
-    private EnvVars getEnvironment(Node node) {
-        EnvironmentVariablesNodeProperty env = node.getNodeProperties().get(EnvironmentVariablesNodeProperty.class);
-        return env != null ? env.getEnvVars() : new EnvVars();
+    private String getManifest(AbstractBuild<?, ?> build) {
+        Node node = build.getBuiltOn();
+
+        // the allocated disk space is measured by du as a whole
+        if (!this.incremental || this.allocated) {
+            return null;
+        }
+
+        FilePath manifest = getManifest(node, build.getWorkspace());
+        return manifest != null ? manifest.getRemote() : null;
+    }
+
+    /**
+     * Returns the manifest of the given workspace on the given slave.
+     * @param node the slave of the workspace
+     * @param workspace the workspace
+     * @return the manifest, which may not exist, or null if the slave is offline
+     */
+    static FilePath getManifest(Node node, FilePath workspace) {
+        if (node == null || workspace == null || node.getRootPath() == null) {
+            return null;
+        }
+
+        String name = Util.getDigestOf(workspace.getRemote()) + ".manifest";
+        return node.getRootPath().child(MANIFEST_DIR).child(name);
+    }
+
+    /**
+     * Deletes the manifest of the given workspace, which is deleted, so the manifests do not pile up on the slave.
+     * @param node the slave of the workspace
+     * @param workspace the deleted workspace
+     */
+    static void deleteManifest(Node node, FilePath workspace) throws IOException, InterruptedException {
+        FilePath manifest = getManifest(node, workspace);
+
+        if (manifest != null) {
+            manifest.delete();
+        }
     }
 }
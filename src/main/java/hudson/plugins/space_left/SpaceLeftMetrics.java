@@ -0,0 +1,216 @@
+package hudson.plugins.space_left;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what the plugin does per node: the latency of the queue checks, the calls to the slave, the cache hits and
+ * misses and the blockages. Recording only updates atomic counters of a node once it has been seen, so it is cheap
+ * enough for the queue dispatch path.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class SpaceLeftMetrics {
+    /**
+     * Number of buckets of the latency histograms. Bucket i counts latencies of 2^i up to 2^(i+1) nanoseconds,
+     * the last bucket everything above.
+     */
+    static final int BUCKETS = 40;
+
+    /**
+     * the only instance
+     */
+    private static final SpaceLeftMetrics INSTANCE = new SpaceLeftMetrics();
+
+    /**
+     * the metrics by node name
+     */
+    private final ConcurrentMap<String, NodeMetrics> nodes = new ConcurrentHashMap<String, NodeMetrics>();
+
+    private SpaceLeftMetrics() {
+    }
+
+    /**
+     * Returns the only instance of the metrics.
+     * @return the metrics
+     */
+    public static SpaceLeftMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the metrics of the given node.
+     *
+     * @param nodeName the name of the node
+     * @return the metrics of the node
+     */
+    public NodeMetrics forNode(String nodeName) {
+        NodeMetrics nodeMetrics = this.nodes.get(nodeName);
+
+        if (nodeMetrics == null) {
+            nodeMetrics = new NodeMetrics();
+            NodeMetrics existing = this.nodes.putIfAbsent(nodeName, nodeMetrics);
+            if (existing != null) {
+                nodeMetrics = existing;
+            }
+        }
+
+        return nodeMetrics;
+    }
+
+    /**
+     * Forgets the given node.
+     *
+     * @param nodeName the name of the node
+     */
+    public void removeNode(String nodeName) {
+        this.nodes.remove(nodeName);
+    }
+
+    /**
+     * Returns the metrics of all nodes as JSON.
+     * @return the metrics by node name
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+
+        for (Map.Entry<String, NodeMetrics> entry : this.nodes.entrySet()) {
+            json.put(entry.getKey(), entry.getValue().toJSON());
+        }
+
+        return json;
+    }
+
+    /**
+     * The metrics of a single node.
+     */
+    public static final class NodeMetrics {
+        private final Histogram canTake = new Histogram();
+
+        private final Histogram remoteCalls = new Histogram();
+
+        private final AtomicLong remoteCallFailures = new AtomicLong();
+
+        private final AtomicLong cacheHits = new AtomicLong();
+
+        private final AtomicLong cacheMisses = new AtomicLong();
+
+        private final AtomicLong notEnoughFreeDiskSpace = new AtomicLong();
+
+        private final AtomicLong freeDiskSpaceUnknown = new AtomicLong();
+
+        /**
+         * Records the latency of a queue check.
+         * @param nanos the latency in nanoseconds
+         */
+        public void recordCanTake(long nanos) {
+            this.canTake.record(nanos);
+        }
+
+        /**
+         * Records a call to the slave.
+         * @param nanos the duration in nanoseconds
+         * @param failed true, if the call failed
+         */
+        public void recordRemoteCall(long nanos, boolean failed) {
+            this.remoteCalls.record(nanos);
+            if (failed) {
+                this.remoteCallFailures.incrementAndGet();
+            }
+        }
+
+        /**
+         * Records a lookup in a cache.
+         * @param hit true, if the value was cached
+         */
+        public void recordCacheLookup(boolean hit) {
+            (hit ? this.cacheHits : this.cacheMisses).incrementAndGet();
+        }
+
+        /**
+         * Records that an item has been blocked, because the node has not enough free disk space.
+         */
+        public void recordNotEnoughFreeDiskSpace() {
+            this.notEnoughFreeDiskSpace.incrementAndGet();
+        }
+
+        /**
+         * Records that an item has been blocked, because the free disk space of the node is not known.
+         */
+        public void recordFreeDiskSpaceUnknown() {
+            this.freeDiskSpaceUnknown.incrementAndGet();
+        }
+
+        JSONObject toJSON() {
+            JSONObject cache = new JSONObject();
+            cache.put("hits", this.cacheHits.get());
+            cache.put("misses", this.cacheMisses.get());
+
+            JSONObject blockages = new JSONObject();
+            blockages.put("notEnoughFreeDiskSpace", this.notEnoughFreeDiskSpace.get());
+            blockages.put("freeDiskSpaceUnknown", this.freeDiskSpaceUnknown.get());
+
+            JSONObject remote = this.remoteCalls.toJSON();
+            remote.put("failures", this.remoteCallFailures.get());
+
+            JSONObject json = new JSONObject();
+            json.put("canTake", this.canTake.toJSON());
+            json.put("remoteCalls", remote);
+            json.put("cache", cache);
+            json.put("blockages", blockages);
+            return json;
+        }
+    }
+
+    /**
+     * A histogram of durations with buckets of powers of two.
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        void record(long nanos) {
+            int bucket = nanos <= 1L ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+            this.buckets.incrementAndGet(bucket);
+            this.count.incrementAndGet();
+            this.totalNanos.addAndGet(Math.max(0L, nanos));
+        }
+
+        long getCount() {
+            return this.count.get();
+        }
+
+        long getBucket(int bucket) {
+            return this.buckets.get(bucket);
+        }
+
+        JSONObject toJSON() {
+            // the upper bounds of the buckets in nanoseconds with their counts, empty buckets are left out
+            JSONArray histogram = new JSONArray();
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucketCount = this.buckets.get(i);
+                if (bucketCount > 0L) {
+                    JSONObject bucket = new JSONObject();
+                    bucket.put("le", i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1L);
+                    bucket.put("count", bucketCount);
+                    histogram.add(bucket);
+                }
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("count", this.count.get());
+            json.put("totalNanos", this.totalNanos.get());
+            json.put("histogram", histogram);
+            return json;
+        }
+    }
+}
@@ -28,23 +28,61 @@ public class SpaceLeftProperty extends JobProperty<Job<?, ?>> {
 
     private double factor;
 
+    private String estimator;
+
+    private double percentile;
+
+    private double ewmaWeight;
+
     public static final String HAS_REQUIRED_SPACE_KEY = "useRequiredSpace";
 
     public static final String REQUIRED_SPACE_KEY = "requiredSpace";
 
     public static final String FACTOR_KEY = "factor";
 
+    public static final String ESTIMATOR_KEY = "estimator";
+
+    public static final String PERCENTILE_KEY = "percentile";
+
+    public static final String EWMA_WEIGHT_KEY = "ewmaWeight";
+
+    /**
+     * the required space is the static value
+     */
+    public static final String ESTIMATOR_STATIC = "static";
+
+    /**
+     * the required space is a percentile of the last measured workspace sizes
+     */
+    public static final String ESTIMATOR_PERCENTILE = "percentile";
+
+    /**
+     * the required space is the exponentially weighted moving average of the last measured workspace sizes
+     */
+    public static final String ESTIMATOR_EWMA = "ewma";
+
     /**
      * default factor for required disk space
      */
     private static final double DEFAULT_FACTOR = 1.0;
 
+    /**
+     * default percentile of the measured workspace sizes
+     */
+    private static final double DEFAULT_PERCENTILE = 95.0;
+
+    /**
+     * default weight of the latest measured workspace size
+     */
+    private static final double DEFAULT_EWMA_WEIGHT = 0.3;
+
     public boolean isUseRequiredSpace() {
         return useRequiredSpace;
     }
 
     public void setUseRequiredSpace(boolean useRequiredSpace) {
         this.useRequiredSpace = useRequiredSpace;
+        this.changed();
     }
 
     public long getRequiredSpace() {
@@ -53,6 +91,7 @@ public class SpaceLeftProperty extends JobProperty<Job<?, ?>> {
 
     public void setRequiredSpace(long requiredSpace) {
         this.requiredSpace = requiredSpace;
+        this.changed();
     }
 
     public double getFactor() {
@@ -61,10 +100,70 @@ public class SpaceLeftProperty extends JobProperty<Job<?, ?>> {
 
     public void setFactor(double factor) {
         this.factor = factor;
+        this.changed();
+    }
+
+    public String getEstimator() {
+        return this.estimator != null ? this.estimator : ESTIMATOR_STATIC;
+    }
+
+    public void setEstimator(String estimator) {
+        this.estimator = estimator;
+        this.changed();
+    }
+
+    public double getPercentile() {
+        return this.percentile > 0.0 && this.percentile <= 100.0 ? this.percentile : DEFAULT_PERCENTILE;
+    }
+
+    public void setPercentile(double percentile) {
+        this.percentile = percentile;
+        this.changed();
+    }
+
+    public double getEwmaWeight() {
+        return this.ewmaWeight > 0.0 && this.ewmaWeight <= 1.0 ? this.ewmaWeight : DEFAULT_EWMA_WEIGHT;
+    }
+
+    public void setEwmaWeight(double ewmaWeight) {
+        this.ewmaWeight = ewmaWeight;
+        this.changed();
+    }
+
+    /**
+     * Forgets the space needed by the owner, as it is remembered for the queue until the job is saved otherwise.
+     */
+    private void changed() {
+        if (this.owner != null) {
+            ProjectSpaceCache.get().invalidate(this.owner.getFullName());
+        }
+    }
+
+    /**
+     * Returns the required space estimated from the measured workspace sizes of the job. If the static estimator is
+     * used or no size has been measured yet, the static required space is returned.
+     * @return the estimated required space
+     */
+    public long getEstimatedSpace() {
+        if (this.owner != null) {
+            long estimate = -1L;
+
+            if (ESTIMATOR_PERCENTILE.equals(this.getEstimator())) {
+                estimate = RequiredSpaceEstimator.get().getPercentile(this.owner.getFullName(), this.getPercentile());
+            } else if (ESTIMATOR_EWMA.equals(this.getEstimator())) {
+                estimate = RequiredSpaceEstimator.get().getAverage(this.owner.getFullName(), this.getEwmaWeight());
+            }
+
+            if (estimate >= 0L) {
+                return estimate;
+            }
+        }
+
+        return this.getRequiredSpace();
     }
 
     public long getSpaceNeeded() {
-        return (long) (this.getRequiredSpace() * this.getFactor());
+        return (long) (this.getEstimatedSpace() * this.getFactor());
     }
 
     @Extension
@@ -88,6 +187,9 @@ public class SpaceLeftProperty extends JobProperty<Job<?, ?>> {
                     spaceLeftProperty.setUseRequiredSpace(true);
                     spaceLeftProperty.setRequiredSpace(formData.getJSONObject(HAS_REQUIRED_SPACE_KEY).getLong(REQUIRED_SPACE_KEY));
                     spaceLeftProperty.setFactor(formData.getJSONObject(HAS_REQUIRED_SPACE_KEY).getDouble(FACTOR_KEY));
+                    spaceLeftProperty.setEstimator(formData.getJSONObject(HAS_REQUIRED_SPACE_KEY).optString(ESTIMATOR_KEY, ESTIMATOR_STATIC));
+                    spaceLeftProperty.setPercentile(formData.getJSONObject(HAS_REQUIRED_SPACE_KEY).optDouble(PERCENTILE_KEY, DEFAULT_PERCENTILE));
+                    spaceLeftProperty.setEwmaWeight(formData.getJSONObject(HAS_REQUIRED_SPACE_KEY).optDouble(EWMA_WEIGHT_KEY, DEFAULT_EWMA_WEIGHT));
                 } catch(JSONException e) {
                     LOGGER.log(Level.WARNING, "could not get required space from " + formData.getString(REQUIRED_SPACE_KEY));
                 }
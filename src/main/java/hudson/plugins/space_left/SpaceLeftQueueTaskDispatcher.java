@@ -1,15 +1,11 @@
 package hudson.plugins.space_left;
 
 import hudson.Extension;
-import hudson.FilePath;
 import hudson.model.*;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
-import hudson.remoting.VirtualChannel;
-import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
 
-import java.io.File;
-import java.io.IOException;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,6 +28,18 @@ public class SpaceLeftQueueTaskDispatcher extends QueueTaskDispatcher {
      */
     private static final String REQUIRED_SPACE_PARAMETER = "REQUIRED_SPACE";
 
+    /**
+     * the causes returned by the dispatcher, shared as they are asked for on every queue maintenance
+     */
+    private static final CauseOfBlockage FREE_DISK_SPACE_UNKNOWN =
+            CauseOfBlockage.fromMessage(Messages._FreeDiskSpaceOnSlaveUnknown());
+
+    private static final CauseOfBlockage NOT_ENOUGH_FREE_DISK_SPACE =
+            CauseOfBlockage.fromMessage(Messages._NotEnoughFreeDiskSpaceOnSlave());
+
+    private static final CauseOfBlockage FREE_DISK_SPACE_HELD =
+            CauseOfBlockage.fromMessage(Messages._FreeDiskSpaceOnSlaveHeld());
+
     /**
      * Returns null, if the given item can be build on the given node. This dispatcher checks, if there is enough disk space
      * on the node. It must be greater than 2 times the last measured build of the item.
@@ -40,87 +48,283 @@ public class SpaceLeftQueueTaskDispatcher extends QueueTaskDispatcher {
      * @param item the job to be executed
      * @return null, if the given item can be build on the given node
      */
-    @SuppressWarnings("unchecked")
     @Override
     public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        return this.canTake(node, item, ProjectSpaceCache.get());
+    }
+
+    /**
+     * Returns null, if the given item can be build on the given node, resolving the space needed by the projects
+     * with the given resolver.
+     *
+     * @param node the slave connected to the jenkins master
+     * @param item the job to be executed
+     * @param projectSpace resolves the space needed by the projects with workspaces on the node
+     * @return null, if the given item can be build on the given node
+     */
+    CauseOfBlockage canTake(Node node, Queue.BuildableItem item, RequiredSpace.ProjectSpace projectSpace) {
         // if not on slave, continue as master should have enough disk space
         if (!(node instanceof Slave)) {
             return super.canTake(node, item);
         }
 
         // Get space needed from string parameter action
-        long spaceNeeded = -1L;
+        long spaceNeeded = getParameterSpaceNeeded(item);
 
-        ParametersAction parametersAction = item.getAction(ParametersAction.class);
+        // if space needed is given by parameter, the current build required space is overridden.
+        // removing it from workspace analysis
+        String currentProjectName = null;
 
-        if (parametersAction != null) {
-            ParameterValue parameterValue = parametersAction.getParameter(REQUIRED_SPACE_PARAMETER);
-            if (parameterValue instanceof StringParameterValue) {
-                String value = ((StringParameterValue) parameterValue).value;
+        if (spaceNeeded > -1L && item.task instanceof AbstractProject) {
+            currentProjectName = ((AbstractProject) item.task).getFullName();
+        }
 
-                try {
-                    spaceNeeded = Long.parseLong(value);
-                } catch (NumberFormatException e) {
-                    LOG.log(Level.WARNING, "Error parsing required space from " + value);
-                }
+        // the space held for an item starving in the queue is not taken by a new workspace, which takes the space
+        // of its project, counted by the check only if given by parameter
+        long heldSpace = SpaceAwareQueueSorter.getHeldSpace(node.getNodeName(), item.id);
 
+        if (heldSpace > 0L && item.task instanceof AbstractProject
+                && !ReservingLoadBalancer.hasWorkspace(node.getNodeName(), (AbstractProject<?, ?>) item.task)) {
+            heldSpace += ReservingLoadBalancer.getSpaceNeeded((AbstractProject) item.task, item) - spaceNeeded;
+        } else {
+            heldSpace = 0L;
+        }
+
+        CauseOfBlockage causeOfBlockage = this.canTake(node.getNodeName(), spaceNeeded, getLocation(item), currentProjectName,
+                item.task.getEstimatedDuration(), projectSpace, heldSpace);
+
+        if (causeOfBlockage != null) {
+            // only queued here, whether another node fits is checked by the reclaimer outside of the queue lock
+            if (WorkspaceReclaimer.ENABLED) {
+                WorkspaceReclaimer.get().requestReclaim(node.getNodeName(), spaceNeeded, getLocation(item),
+                        currentProjectName, item.task.getEstimatedDuration(), item.getAssignedLabel());
             }
+            return causeOfBlockage;
         }
 
-        // Get required space from node
+        return super.canTake(node, item);
+    }
+
+    /**
+     * Checks the cached free space of the given node against the space needed by the item and the space required
+     * by the workspaces on the node. The slave is never asked here, as the queue is locked while checking.
+     *
+     * @param nodeName the name of the slave
+     * @param spaceNeeded the space needed by the item
+     * @param location the workspace location of the item, see {@link SpaceProbe#DEFAULT_LOCATION}
+     * @param currentProjectName the name of the project whose workspace is not counted or null
+     * @param duration the estimated duration of the item in milliseconds or -1, if it is not known
+     * @param projectSpace resolves the space needed by the projects with workspaces on the node
+     * @return null, if the node has enough free space
+     */
+    CauseOfBlockage canTake(String nodeName, long spaceNeeded, String location, String currentProjectName,
+                            long duration, RequiredSpace.ProjectSpace projectSpace) {
+        return this.canTake(nodeName, spaceNeeded, location, currentProjectName, duration, projectSpace, 0L);
+    }
+
+    /**
+     * Checks the cached free space of the given node like {@link #canTake(String, long, String, String, long,
+     * RequiredSpace.ProjectSpace)}, keeping the given space free for an item starving in the queue.
+     *
+     * @param heldSpace the space in bytes that has to be left free after the item, 0 if none is held
+     * @return null, if the node has enough free space
+     */
+    CauseOfBlockage canTake(String nodeName, long spaceNeeded, String location, String currentProjectName,
+                            long duration, RequiredSpace.ProjectSpace projectSpace, long heldSpace) {
+        long start = System.nanoTime();
+        SpaceLeftMetrics.NodeMetrics metrics = SpaceLeftMetrics.get().forNode(nodeName);
+
         try {
-            RequiredSpace requiredSpace = new RequiredSpace(node);
+            // the probe that measured the free space has indexed the workspaces of the node as well
+            FreeSpaceCache.Snapshot snapshot = FreeSpaceCache.get().getSnapshot(nodeName);
+            Map<String, String> workspaces = WorkspaceIndex.get().getWorkspaces(nodeName);
+            metrics.recordCacheLookup(snapshot != null && workspaces != null);
+
+            if (snapshot == null || workspaces == null) {
+                if (workspaces == null) {
+                    FreeSpaceCache.get().requestRefresh(nodeName);
+                }
 
-            // if space needed is given by parameter, the current build required space is overridden.
-            // removing it from workspace analysis
-            AbstractProject currentProject = null;
+                // a slave that does not answer is not asked again for a while, the last known value has to do
+                if (CircuitBreaker.get().isTripped(nodeName)) {
+                    snapshot = workspaces != null ? FreeSpaceCache.get().getLastSnapshot(nodeName) : null;
 
-            if (spaceNeeded > -1L && item.task instanceof AbstractProject) {
-                currentProject = (AbstractProject) item.task;
-            }
+                    if (snapshot == null && CircuitBreaker.isAllowPolicy()) {
+                        if (LOG.isLoggable(Level.FINE)) {
+                            LOG.log(Level.FINE, "free disk space of slave " + nodeName + " is not known, allowing");
+                        }
+                        return null;
+                    }
+                }
 
-            spaceNeeded += requiredSpace.getRequiredSpace(currentProject);
+                if (snapshot == null) {
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.log(Level.FINE, "free disk space of slave " + nodeName + " is not known yet");
+                    }
+                    metrics.recordFreeDiskSpaceUnknown();
+                    return FREE_DISK_SPACE_UNKNOWN;
+                }
+            }
 
-            FilePath p = node.getRootPath();
+            Long headroom = getHeadroom(nodeName, snapshot, workspaces, spaceNeeded, location, currentProjectName,
+                    duration, projectSpace);
 
-            if (p != null) {
-                Long freeSpaceOnSlave = p.act(new GetUsableSpace());
+            if (headroom == null || headroom <= 0L) {
+                // asked on every queue maintenance, the blocked items are shown in the queue and the metrics
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "slave " + nodeName + " has not enough free disk space!");
+                }
+                metrics.recordNotEnoughFreeDiskSpace();
+                return NOT_ENOUGH_FREE_DISK_SPACE;
+            }
 
-                if (freeSpaceOnSlave == null || freeSpaceOnSlave - spaceNeeded <= 0L) {
-                    LOG.log(Level.WARNING, "slave " + node.getNodeName() + " has not enough free disk space!");
-                    return CauseOfBlockage.fromMessage(Messages._NotEnoughFreeDiskSpaceOnSlave());
+            if (headroom - heldSpace <= 0L) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "free disk space of slave " + nodeName + " is held for a starving item");
                 }
+                return FREE_DISK_SPACE_HELD;
             }
 
-        } catch (IOException e) {
-            LOG.log(Level.SEVERE, e.getMessage());
-        } catch (InterruptedException e) {
-            LOG.log(Level.SEVERE, e.getMessage());
+            return null;
+        } finally {
+            metrics.recordCanTake(System.nanoTime() - start);
         }
+    }
 
-        return super.canTake(node, item);
+    /**
+     * Returns the free space that is left on the given node when the item placed on it ends, taken from
+     * the cached free space and its trend. The slave is never asked.
+     *
+     * @param nodeName the name of the slave
+     * @param spaceNeeded the space needed by the item
+     * @param location the workspace location of the item, see {@link SpaceProbe#DEFAULT_LOCATION}
+     * @param currentProjectName the name of the project whose workspace is not counted or null
+     * @param duration the estimated duration of the item in milliseconds or -1, if it is not known
+     * @param projectSpace resolves the space needed by the projects with workspaces on the node
+     * @return the space left in bytes or null, if the free space of the node is not known
+     */
+    static Long getHeadroom(String nodeName, long spaceNeeded, String location, String currentProjectName,
+                            long duration, RequiredSpace.ProjectSpace projectSpace) {
+        FreeSpaceCache.Snapshot snapshot = FreeSpaceCache.get().getSnapshot(nodeName);
+        Map<String, String> workspaces = WorkspaceIndex.get().getWorkspaces(nodeName);
+
+        if (snapshot == null || workspaces == null) {
+            return null;
+        }
+
+        return getHeadroom(nodeName, snapshot, workspaces, spaceNeeded, location, currentProjectName, duration,
+                projectSpace);
     }
 
     /**
-     * inner class that is executed on slave to get free disk space
+     * Returns the free space of the given node once the builds on it have ended and the workspaces on the file store
+     * of its workspace directory have been reclaimed, taken from the cached free space. The slave is never asked.
+     *
+     * @param nodeName the name of the slave
+     * @param projectSpace resolves the space needed by the projects with workspaces on the node
+     * @return the space in bytes or null, if the free space of the node is not known
      */
-    protected static final class GetUsableSpace implements FilePath.FileCallable<Long> {
-        @IgnoreJRERequirement
-        public Long invoke(File f, VirtualChannel channel) throws IOException {
-            try {
-                long s = f.getUsableSpace();
-
-                if (s <= 0) {
-                    return null;
+    static Long getCapacity(String nodeName, RequiredSpace.ProjectSpace projectSpace) {
+        FreeSpaceCache.Snapshot snapshot = FreeSpaceCache.get().getSnapshot(nodeName);
+        Map<String, String> workspaces = WorkspaceIndex.get().getWorkspaces(nodeName);
+        Long usableSpace = snapshot != null ? snapshot.getUsableSpace(SpaceProbe.DEFAULT_LOCATION) : null;
+
+        if (usableSpace == null || workspaces == null) {
+            return null;
+        }
+
+        RequiredSpaceMemo.Totals totals = RequiredSpaceMemo.get().getTotals(nodeName, workspaces,
+                WorkspaceIndex.get().getCustomWorkspaces(nodeName), snapshot, projectSpace);
+        return usableSpace + totals.getRequiredSpace(snapshot.getStore(SpaceProbe.DEFAULT_LOCATION), null);
+    }
+
+    private static Long getHeadroom(String nodeName, FreeSpaceCache.Snapshot snapshot, Map<String, String> workspaces,
+                                    long spaceNeeded, String location, String currentProjectName, long duration,
+                                    RequiredSpace.ProjectSpace projectSpace) {
+        // a custom workspace that does not exist yet is created below the workspace directory's file store
+        if (snapshot.getStore(location) == null) {
+            location = SpaceProbe.DEFAULT_LOCATION;
+        }
+
+        // only the workspaces on the file store the item will use take space from it, the totals of the node
+        // are computed once for all items checked against it
+        RequiredSpaceMemo.Totals totals = RequiredSpaceMemo.get().getTotals(nodeName, workspaces,
+                WorkspaceIndex.get().getCustomWorkspaces(nodeName), snapshot, projectSpace);
+        spaceNeeded += totals.getRequiredSpace(snapshot.getStore(location), currentProjectName);
+
+        // items handed to executors of the node, that have not created their workspace yet
+        spaceNeeded += SpaceReservations.get().getReserved(nodeName);
+
+        // what other consumers of the file store are expected to take until the item ends, the running builds
+        // on the file store write what they still need to their workspaces counted above
+        String store = snapshot.getStore(location);
+        spaceNeeded += SpaceForecast.get().getDecline(nodeName, store, duration,
+                RequiredSpaceMemo.get().getRunningSpaceNeeded(nodeName, store, snapshot, projectSpace));
+
+        Long freeSpaceOnSlave = snapshot.getUsableSpace(location);
+
+        if (freeSpaceOnSlave == null) {
+            return null;
+        }
+        return freeSpaceOnSlave - spaceNeeded;
+    }
+
+    /**
+     * Returns the workspace location of the given item, which is its custom workspace, if it is known before the build.
+     *
+     * @param item the item to get the workspace location for
+     * @return the workspace location
+     */
+    static String getLocation(Queue.Item item) {
+        if (item.task instanceof AbstractProject) {
+            return getLocation((AbstractProject) item.task);
+        }
+        return SpaceProbe.DEFAULT_LOCATION;
+    }
+
+    /**
+     * Returns the workspace location of the given project, which is its custom workspace, if it is known before
+     * the build.
+     *
+     * @param project the project to get the workspace location for
+     * @return the workspace location
+     */
+    static String getLocation(AbstractProject<?, ?> project) {
+        String customWorkspace = project.getCustomWorkspace();
+
+        if (customWorkspace != null && customWorkspace.length() > 0 && !customWorkspace.contains("$")) {
+            return customWorkspace;
+        }
+        return SpaceProbe.DEFAULT_LOCATION;
+    }
+
+    /**
+     * Returns the space needed given by the REQUIRED_SPACE parameter of the item.
+     *
+     * @param item the item to get the parameter from
+     * @return the space needed or -1, if the parameter is not set
+     */
+    static long getParameterSpaceNeeded(Queue.Item item) {
+        long spaceNeeded = -1L;
+
+        ParametersAction parametersAction = item.getAction(ParametersAction.class);
+
+        if (parametersAction != null) {
+            ParameterValue parameterValue = parametersAction.getParameter(REQUIRED_SPACE_PARAMETER);
+            if (parameterValue instanceof StringParameterValue) {
+                String value = ((StringParameterValue) parameterValue).value;
+
+                try {
+                    spaceNeeded = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    if (LOG.isLoggable(Level.WARNING)) {
+                        LOG.log(Level.WARNING, "Error parsing required space from " + value);
+                    }
                 }
 
-                return s;
-            } catch (LinkageError e) {
-                // pre-mustang
-                return null;
             }
         }
 
-        private static final long serialVersionUID = 123L;
+        return spaceNeeded;
     }
 }
@@ -0,0 +1,86 @@
+package hudson.plugins.space_left;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.RootAction;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Publishes the state of the plugin below <code>/space-left</code>, e.g. the metrics as JSON
+ * at <code>/space-left/metrics</code> and the headroom of all nodes at <code>/space-left/headroom</code>.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+@Extension
+public class SpaceLeftRootAction implements RootAction {
+
+    public String getIconFileName() {
+        // not shown in the side panel
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.DisplayName();
+    }
+
+    public String getUrlName() {
+        return "space-left";
+    }
+
+    /**
+     * Writes the metrics of all nodes as JSON. Only for administrators, as the metrics count the items of all
+     * projects and cannot be filtered by the projects a user may read.
+     */
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(SpaceLeftMetrics.get().toJSON().toString());
+    }
+
+    /**
+     * Writes the free space, the required space and the required space per project of all nodes as JSON, listing
+     * only the projects the user may read. Answers 304 if the state has not changed since the entity tag sent in
+     * <code>If-None-Match</code>.
+     */
+    public void doHeadroom(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+        // the projects listed depend on the user
+        String etag = FleetHeadroom.getETag(Jenkins.getAuthentication().getName());
+        rsp.setHeader("ETag", etag);
+        rsp.setHeader("Cache-Control", "private, no-cache");
+
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag))) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        FleetHeadroom.write(rsp.getWriter(), ProjectSpaceCache.get(), FleetHeadroom.READABLE);
+    }
+
+    /**
+     * Changes the entity tags of the headroom when the permissions may have changed, so users are not told that
+     * a list of projects they may no longer read is unchanged.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Jenkins || o instanceof Item || o instanceof User) {
+                FleetHeadroom.invalidateSecurity();
+            }
+        }
+    }
+}
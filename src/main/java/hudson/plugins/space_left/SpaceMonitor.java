@@ -0,0 +1,294 @@
+package hudson.plugins.space_left;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Installed on a slave when it connects, samples the free space of the workspace locations on the slave and pushes
+ * it to the {@link FreeSpaceCache} only when it has changed by more than a delta or crossed the threshold.
+ * The free space of monitored slaves is not polled by the master, only their workspace directories are reconciled
+ * from time to time by {@link FreeSpaceRefreshWork}. Without a change, the free space is pushed after half
+ * the time the cache trusts it, so a slave whose monitor has died is polled again.
+ * <p>
+ * Disabled by the system property <tt>hudson.plugins.space_left.SpaceMonitor.disabled</tt>.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class SpaceMonitor implements Callable<Void, IOException> {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(SpaceMonitor.class.getName());
+
+    /**
+     * True, if the slaves are polled instead.
+     */
+    static final boolean DISABLED = Boolean.getBoolean(SpaceMonitor.class.getName() + ".disabled");
+
+    /**
+     * Time in milliseconds between two samples on the slave.
+     */
+    static final long SAMPLE_INTERVAL = Long.getLong(SpaceMonitor.class.getName() + ".sampleInterval", 5000L);
+
+    /**
+     * The change of the free space in bytes that is pushed.
+     */
+    static final long DELTA = Long.getLong(SpaceMonitor.class.getName() + ".delta", 100L * 1024L * 1024L);
+
+    /**
+     * Crossing this free space in bytes is pushed, even if the change is smaller than the delta.
+     */
+    static final long THRESHOLD = Long.getLong(SpaceMonitor.class.getName() + ".threshold", 1024L * 1024L * 1024L);
+
+    /**
+     * the sampling thread of the monitor installed in this slave JVM
+     */
+    private static Thread thread;
+
+    /**
+     * the root directory of the slave
+     */
+    private final String root;
+
+    /**
+     * the custom workspaces to resolve the file stores of
+     */
+    private final List<String> customWorkspaces;
+
+    /**
+     * receives the pushed free space on the master
+     */
+    private final Listener listener;
+
+    private final long sampleInterval;
+
+    private final long delta;
+
+    private final long threshold;
+
+    private final long heartbeatInterval;
+
+    public SpaceMonitor(String root, List<String> customWorkspaces, Listener listener, long sampleInterval, long delta,
+                        long threshold, long heartbeatInterval) {
+        this.root = root;
+        this.customWorkspaces = new ArrayList<String>(customWorkspaces);
+        this.listener = listener;
+        this.sampleInterval = sampleInterval;
+        this.delta = delta;
+        this.threshold = threshold;
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    /**
+     * Installs the monitor on the given slave. The monitor pushes its first sample right away.
+     *
+     * @param node the slave
+     * @param channel the channel to the slave
+     */
+    static void install(Node node, Channel channel) throws IOException, InterruptedException {
+        FilePath rootPath = node.getRootPath();
+
+        if (rootPath == null) {
+            return;
+        }
+
+        Listener listener = channel.export(Listener.class, new ListenerImpl(node.getNodeName()));
+        channel.call(new SpaceMonitor(rootPath.getRemote(), new ArrayList<String>(WorkspaceTrie.get().getCustomWorkspaces().keySet()),
+                listener, SAMPLE_INTERVAL, DELTA, THRESHOLD, FreeSpaceCache.MAX_AGE / 2L));
+        FreeSpaceCache.get().setMonitored(node.getNodeName(), true);
+    }
+
+    /**
+     * Installs the monitors on all monitored slaves again in the background, so they measure the custom
+     * workspaces as configured now.
+     */
+    static void reinstall() {
+        if (DISABLED) {
+            return;
+        }
+
+        RefreshExecutor.get().submit(new Runnable() {
+            public void run() {
+                for (Computer computer : Jenkins.getInstance().getComputers()) {
+                    Node node = computer.getNode();
+                    VirtualChannel channel = computer.getChannel();
+
+                    if (!(node instanceof Slave) || !(channel instanceof Channel)
+                            || !FreeSpaceCache.get().isMonitored(node.getNodeName())) {
+                        continue;
+                    }
+
+                    try {
+                        install(node, (Channel) channel);
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "could not install space left monitor on " + node.getNodeName(), e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }, false);
+    }
+
+    /**
+     * Starts sampling on the slave, replacing a monitor installed before over the same channel.
+     */
+    public Void call() throws IOException {
+        synchronized (SpaceMonitor.class) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    sample();
+                }
+            }, "Space left monitor");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return null;
+    }
+
+    /**
+     * Samples until the thread is interrupted or the master cannot be reached.
+     */
+    private void sample() {
+        SpaceProbe probe = new SpaceProbe(this.customWorkspaces);
+        File rootDir = new File(this.root);
+        SpaceProbe.Result pushed = null;
+        long pushedAt = 0L;
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                SpaceProbe.Result result = probe.measure(rootDir, false);
+                long now = System.currentTimeMillis();
+
+                if (pushed == null || now - pushedAt >= this.heartbeatInterval
+                        || hasChanged(pushed, result, this.delta, this.threshold)) {
+                    this.listener.onSample(result);
+                    pushed = result;
+                    pushedAt = now;
+                }
+
+                Thread.sleep(this.sampleInterval);
+            }
+        } catch (InterruptedException e) {
+            // replaced by another monitor
+        } catch (Exception e) {
+            // the channel has been closed, the next connection installs a new monitor
+            LOG.log(Level.FINE, "space left monitor stopped", e);
+        }
+    }
+
+    /**
+     * Returns true, if the free space of the slave root or of any file store has changed enough to be pushed.
+     *
+     * @param pushed the last pushed result
+     * @param result the current result
+     * @param delta the change in bytes that is pushed
+     * @param threshold the free space in bytes whose crossing is pushed
+     * @return true, if the result should be pushed
+     */
+    static boolean hasChanged(SpaceProbe.Result pushed, SpaceProbe.Result result, long delta, long threshold) {
+        if (!pushed.getLocations().equals(result.getLocations())
+                || hasChanged(pushed.getUsableSpace(), result.getUsableSpace(), delta, threshold)) {
+            return true;
+        }
+
+        Set<String> stores = new HashSet<String>(pushed.getStoreUsableSpace().keySet());
+        stores.addAll(result.getStoreUsableSpace().keySet());
+
+        for (String store : stores) {
+            if (hasChanged(pushed.getStoreUsableSpace().get(store), result.getStoreUsableSpace().get(store), delta,
+                    threshold)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean hasChanged(Long pushed, Long current, long delta, long threshold) {
+        if (pushed == null || current == null) {
+            return pushed != current;
+        }
+        return Math.abs(current - pushed) > delta || (pushed < threshold) != (current < threshold);
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Receives the samples on the master.
+     */
+    public interface Listener {
+        /**
+         * @param result the free space of the slave, without workspace directories
+         */
+        void onSample(SpaceProbe.Result result);
+    }
+
+    /**
+     * Passes the samples of a slave to the {@link FreeSpaceCache}.
+     */
+    private static final class ListenerImpl implements Listener {
+        private final String nodeName;
+
+        ListenerImpl(String nodeName) {
+            this.nodeName = nodeName;
+        }
+
+        public void onSample(SpaceProbe.Result result) {
+            FreeSpaceCache.get().update(this.nodeName, result);
+        }
+    }
+
+    /**
+     * Installs the monitor when a slave connects and returns to polling when it disconnects.
+     */
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
+            Node node = c.getNode();
+            VirtualChannel channel = c.getChannel();
+
+            if (DISABLED || !(node instanceof Slave) || !(channel instanceof Channel)) {
+                return;
+            }
+
+            try {
+                install(node, (Channel) channel);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "could not install space left monitor on " + node.getNodeName(), e);
+            }
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            Node node = c.getNode();
+
+            if (node != null) {
+                FreeSpaceCache.get().setMonitored(node.getNodeName(), false);
+            }
+        }
+    }
+}
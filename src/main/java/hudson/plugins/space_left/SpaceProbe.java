@@ -0,0 +1,379 @@
+package hudson.plugins.space_left;
+
+import hudson.FilePath;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOException2;
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executed on the slave to get the free disk space and the workspace directories in one call. The free space is
+ * measured per file store, for the workspace directory and for every custom workspace, as they may be mounted
+ * from other volumes than the slave root.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class SpaceProbe implements FilePath.FileCallable<SpaceProbe.Result> {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(SpaceProbe.class.getName());
+
+    /**
+     * The location of the workspaces that are not custom ones, relative to the slave root.
+     */
+    public static final String DEFAULT_LOCATION = "workspace";
+
+    /**
+     * Time in milliseconds after which a probe is given up.
+     */
+    static final long TIMEOUT = Long.getLong(SpaceProbe.class.getName() + ".timeout", 30000L);
+
+    /**
+     * the custom workspaces to resolve the file stores of, absolute or relative to the slave root
+     */
+    private final List<String> customWorkspaces;
+
+    /**
+     * the workspace paths containing the workspaces of other projects, listed as well
+     */
+    private final Set<String> containers;
+
+    /**
+     * the suffix of the workspaces of concurrent builds, as configured on the master
+     */
+    private final String combinator = WorkspaceTrie.COMBINATOR;
+
+    public SpaceProbe() {
+        this(Collections.<String>emptyList());
+    }
+
+    public SpaceProbe(List<String> customWorkspaces) {
+        this(customWorkspaces, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param customWorkspaces the custom workspaces to resolve the file stores of
+     * @param containers the workspace paths containing the workspaces of other projects, see
+     * {@link WorkspaceTrie#getContainers()}
+     */
+    public SpaceProbe(List<String> customWorkspaces, Collection<String> containers) {
+        this.customWorkspaces = new ArrayList<String>(customWorkspaces);
+        this.containers = new HashSet<String>(containers);
+    }
+
+    /**
+     * Probes the given node and updates the {@link FreeSpaceCache} and the {@link WorkspaceIndex} with the result.
+     * The call is given up after the timeout, and not made at all while the {@link CircuitBreaker} of the node is open.
+     *
+     * @param node the node to probe
+     * @return the result or null, if the node is offline or its circuit is open
+     */
+    public static Result probe(Node node) throws IOException, InterruptedException {
+        FilePath p = node.getRootPath();
+
+        if (p == null) {
+            return null;
+        }
+
+        String nodeName = node.getNodeName();
+        CircuitBreaker circuitBreaker = CircuitBreaker.get();
+
+        if (circuitBreaker.isOpen(nodeName)) {
+            LOG.log(Level.FINE, "not probing " + nodeName + " as it has failed too often");
+            return null;
+        }
+
+        Map<String, String> customWorkspaces = WorkspaceTrie.get().getCustomWorkspaces();
+        SpaceLeftMetrics.NodeMetrics metrics = SpaceLeftMetrics.get().forNode(nodeName);
+        long start = System.nanoTime();
+        boolean failed = true;
+        Result result;
+
+        try {
+            Future<Result> future = p.actAsync(new SpaceProbe(new ArrayList<String>(customWorkspaces.keySet()),
+                    WorkspaceTrie.get().getContainers()));
+
+            try {
+                result = future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                throw new IOException2("probing " + nodeName + " timed out after " + TIMEOUT + "ms", e);
+            } catch (ExecutionException e) {
+                throw new IOException2("probing " + nodeName + " failed", e.getCause());
+            }
+
+            failed = false;
+        } finally {
+            metrics.recordRemoteCall(System.nanoTime() - start, failed);
+
+            if (failed) {
+                circuitBreaker.recordFailure(nodeName);
+            } else {
+                circuitBreaker.recordSuccess(nodeName);
+            }
+        }
+
+        FreeSpaceCache.get().update(nodeName, result);
+        WorkspaceIndex.get().update(nodeName, result, customWorkspaces);
+        return result;
+    }
+
+    /**
+     * @param f the root directory of the slave
+     */
+    public Result invoke(File f, VirtualChannel channel) throws IOException {
+        return this.measure(f, true);
+    }
+
+    /**
+     * Measures the free space of the file stores of the workspace locations.
+     *
+     * @param f the root directory of the slave
+     * @param listWorkspaces true, if the workspace directories are listed as well
+     * @return the result, without workspace directories if they are not listed
+     */
+    Result measure(File f, boolean listWorkspaces) throws IOException {
+        Map<String, Long> workspaces = new HashMap<String, Long>();
+
+        if (listWorkspaces) {
+            this.listWorkspaces(new File(f, DEFAULT_LOCATION), null, null, workspaces);
+        }
+
+        Map<String, String> locations = new HashMap<String, String>();
+        Map<String, Long> storeUsableSpace = new HashMap<String, Long>();
+        Map<String, Long> storeTotalSpace = new HashMap<String, Long>();
+
+        try {
+            resolveStore(DEFAULT_LOCATION, new File(f, DEFAULT_LOCATION), locations, storeUsableSpace, storeTotalSpace);
+
+            for (String customWorkspace : this.customWorkspaces) {
+                File location = new File(customWorkspace);
+                if (!location.isAbsolute()) {
+                    location = new File(f, customWorkspace);
+                }
+
+                // only existing workspaces take space
+                if (location.exists()) {
+                    resolveStore(customWorkspace, location, locations, storeUsableSpace, storeTotalSpace);
+                }
+            }
+        } catch (LinkageError e) {
+            // pre NIO.2, everything is counted on the file store of the slave root
+            locations.clear();
+            storeUsableSpace.clear();
+            storeTotalSpace.clear();
+        }
+
+        return new Result(getUsableSpace(f), getTotalSpace(f), workspaces, locations, storeUsableSpace, storeTotalSpace);
+    }
+
+    /**
+     * Lists the directories below the given directory with their modification times, and the directories below
+     * those that contain the workspaces of other projects.
+     *
+     * @param dir the directory to list
+     * @param path the path of the directory relative to the workspace directory or null for the workspace directory
+     * @param container the path of the directory in the {@link WorkspaceTrie}, without the suffixes of concurrent
+     * builds, or null for the workspace directory
+     * @param workspaces the modification times by workspace path to add to
+     */
+    private void listWorkspaces(File dir, String path, String container, Map<String, Long> workspaces) {
+        File[] children = dir.listFiles();
+
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (!child.isDirectory()) {
+                continue;
+            }
+
+            String childPath = path != null ? path + "/" + child.getName() : child.getName();
+            workspaces.put(childPath, child.lastModified());
+
+            String childContainer = this.getContainer(container, child.getName());
+            if (childContainer != null) {
+                this.listWorkspaces(child, childPath, childContainer, workspaces);
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the given child in the trie, if it contains the workspaces of other projects.
+     */
+    private String getContainer(String container, String name) {
+        String prefix = container != null ? container + "/" : "";
+
+        if (this.containers.contains(prefix + name)) {
+            return prefix + name;
+        }
+
+        int index = name.lastIndexOf(this.combinator);
+        if (index > 0 && this.containers.contains(prefix + name.substring(0, index))) {
+            return prefix + name.substring(0, index);
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the file store of the given location and measures it, if it has not been measured yet.
+     */
+    @IgnoreJRERequirement
+    private static void resolveStore(String name, File location, Map<String, String> locations,
+                                     Map<String, Long> storeUsableSpace, Map<String, Long> storeTotalSpace) throws IOException {
+        // the workspace directory may not have been created yet, its parent is on the same file store then
+        File existing = location.getAbsoluteFile();
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        if (existing == null) {
+            return;
+        }
+
+        Path path = existing.toPath();
+        FileStore store = Files.getFileStore(path);
+        String key;
+        try {
+            key = "dev:" + Files.getAttribute(path, "unix:dev");
+        } catch (UnsupportedOperationException e) {
+            key = store.name() + ":" + store.type();
+        } catch (IllegalArgumentException e) {
+            key = store.name() + ":" + store.type();
+        }
+
+        locations.put(name, key);
+
+        if (!storeUsableSpace.containsKey(key)) {
+            long usableSpace = store.getUsableSpace();
+            storeUsableSpace.put(key, usableSpace > 0L ? usableSpace : null);
+            storeTotalSpace.put(key, store.getTotalSpace());
+        }
+    }
+
+    @IgnoreJRERequirement
+    private static Long getUsableSpace(File f) {
+        try {
+            long s = f.getUsableSpace();
+
+            if (s <= 0) {
+                return null;
+            }
+
+            return s;
+        } catch (LinkageError e) {
+            // pre-mustang
+            return null;
+        }
+    }
+
+    @IgnoreJRERequirement
+    private static long getTotalSpace(File f) {
+        try {
+            return f.getTotalSpace();
+        } catch (LinkageError e) {
+            // pre-mustang
+            return 0L;
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The answer of the slave.
+     */
+    public static final class Result implements Serializable {
+        /**
+         * the usable space of the slave root in bytes or null, if the slave could not tell
+         */
+        private final Long usableSpace;
+
+        /**
+         * the total space of the slave root in bytes or 0, if the slave could not tell
+         */
+        private final long totalSpace;
+
+        /**
+         * the last modification times by workspace directory name
+         */
+        private final Map<String, Long> workspaces;
+
+        /**
+         * the file stores by workspace location
+         */
+        private final Map<String, String> locations;
+
+        /**
+         * the usable space in bytes by file store, null if the slave could not tell
+         */
+        private final Map<String, Long> storeUsableSpace;
+
+        /**
+         * the total space in bytes by file store
+         */
+        private final Map<String, Long> storeTotalSpace;
+
+        public Result(Long usableSpace, long totalSpace, Map<String, Long> workspaces) {
+            this(usableSpace, totalSpace, workspaces, new HashMap<String, String>(), new HashMap<String, Long>(),
+                    new HashMap<String, Long>());
+        }
+
+        public Result(Long usableSpace, long totalSpace, Map<String, Long> workspaces, Map<String, String> locations,
+                      Map<String, Long> storeUsableSpace, Map<String, Long> storeTotalSpace) {
+            this.usableSpace = usableSpace;
+            this.totalSpace = totalSpace;
+            this.workspaces = workspaces;
+            this.locations = locations;
+            this.storeUsableSpace = storeUsableSpace;
+            this.storeTotalSpace = storeTotalSpace;
+        }
+
+        public Long getUsableSpace() {
+            return usableSpace;
+        }
+
+        public long getTotalSpace() {
+            return totalSpace;
+        }
+
+        public Map<String, Long> getWorkspaces() {
+            return Collections.unmodifiableMap(workspaces);
+        }
+
+        public Map<String, String> getLocations() {
+            return Collections.unmodifiableMap(locations);
+        }
+
+        public Map<String, Long> getStoreUsableSpace() {
+            return Collections.unmodifiableMap(storeUsableSpace);
+        }
+
+        public Map<String, Long> getStoreTotalSpace() {
+            return Collections.unmodifiableMap(storeTotalSpace);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
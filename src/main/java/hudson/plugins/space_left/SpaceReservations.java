@@ -0,0 +1,184 @@
+package hudson.plugins.space_left;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the space of items that have been handed to an executor of a node, but have not used their
+ * workspace yet. Their workspaces do not exist yet and are therefore not counted by {@link RequiredSpace}. Without
+ * the reservations a burst of items would see the same free space and all be taken by the same node.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class SpaceReservations {
+    /**
+     * Time in milliseconds after which a reservation is dropped, if it has never been released.
+     */
+    static final long MAX_AGE = Long.getLong(SpaceReservations.class.getName() + ".maxAge", 3600000L);
+
+    /**
+     * the only instance
+     */
+    private static final SpaceReservations INSTANCE = new SpaceReservations();
+
+    /**
+     * the reservations by node name
+     */
+    private final ConcurrentMap<String, NodeReservations> nodes = new ConcurrentHashMap<String, NodeReservations>();
+
+    private SpaceReservations() {
+    }
+
+    /**
+     * Returns the only instance of the reservations.
+     * @return the reservations
+     */
+    public static SpaceReservations get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reserves space for a build of the given project on the given node.
+     *
+     * @param nodeName the name of the node
+     * @param projectName the name of the project
+     * @param space the space to reserve in bytes
+     */
+    public void reserve(String nodeName, String projectName, long space) {
+        if (space <= 0L) {
+            return;
+        }
+
+        this.getNodeReservations(nodeName).reserve(projectName, space, System.currentTimeMillis());
+    }
+
+    /**
+     * Releases the oldest reservation of the given project on the given node.
+     *
+     * @param nodeName the name of the node
+     * @param projectName the name of the project
+     */
+    public void release(String nodeName, String projectName) {
+        NodeReservations nodeReservations = this.nodes.get(nodeName);
+
+        if (nodeReservations != null) {
+            nodeReservations.release(projectName);
+        }
+    }
+
+    /**
+     * Returns the space reserved on the given node.
+     *
+     * @param nodeName the name of the node
+     * @return the reserved space in bytes
+     */
+    public long getReserved(String nodeName) {
+        NodeReservations nodeReservations = this.nodes.get(nodeName);
+        return nodeReservations != null ? nodeReservations.total.get() : 0L;
+    }
+
+    /**
+     * Drops all reservations older than the given time.
+     *
+     * @param timestamp the time in milliseconds
+     */
+    public void purge(long timestamp) {
+        for (NodeReservations nodeReservations : this.nodes.values()) {
+            nodeReservations.purge(timestamp);
+        }
+    }
+
+    /**
+     * Forgets the given node.
+     *
+     * @param nodeName the name of the node
+     */
+    public void removeNode(String nodeName) {
+        this.nodes.remove(nodeName);
+    }
+
+    private NodeReservations getNodeReservations(String nodeName) {
+        NodeReservations nodeReservations = this.nodes.get(nodeName);
+
+        if (nodeReservations == null) {
+            nodeReservations = new NodeReservations();
+            NodeReservations existing = this.nodes.putIfAbsent(nodeName, nodeReservations);
+            if (existing != null) {
+                nodeReservations = existing;
+            }
+        }
+
+        return nodeReservations;
+    }
+
+    /**
+     * The reservations of a single node.
+     */
+    private static final class NodeReservations {
+        /**
+         * the sum of all reservations of the node
+         */
+        private final AtomicLong total = new AtomicLong();
+
+        /**
+         * the reservations by project name, oldest first
+         */
+        private final ConcurrentMap<String, Queue<Reservation>> projects = new ConcurrentHashMap<String, Queue<Reservation>>();
+
+        void reserve(String projectName, long space, long timestamp) {
+            Queue<Reservation> reservations = this.projects.get(projectName);
+
+            if (reservations == null) {
+                reservations = new ConcurrentLinkedQueue<Reservation>();
+                Queue<Reservation> existing = this.projects.putIfAbsent(projectName, reservations);
+                if (existing != null) {
+                    reservations = existing;
+                }
+            }
+
+            reservations.add(new Reservation(space, timestamp));
+            this.total.addAndGet(space);
+        }
+
+        void release(String projectName) {
+            Queue<Reservation> reservations = this.projects.get(projectName);
+
+            if (reservations != null) {
+                Reservation reservation = reservations.poll();
+                if (reservation != null) {
+                    this.total.addAndGet(-reservation.space);
+                }
+            }
+        }
+
+        void purge(long timestamp) {
+            for (Map.Entry<String, Queue<Reservation>> entry : this.projects.entrySet()) {
+                for (Iterator<Reservation> it = entry.getValue().iterator(); it.hasNext(); ) {
+                    Reservation reservation = it.next();
+                    if (reservation.timestamp < timestamp && entry.getValue().remove(reservation)) {
+                        this.total.addAndGet(-reservation.space);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The space reserved for a single build.
+     */
+    private static final class Reservation {
+        private final long space;
+
+        private final long timestamp;
+
+        Reservation(long space, long timestamp) {
+            this.space = space;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package hudson.plugins.space_left;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves the free space, the workspace index and the measured workspace sizes under JENKINS_HOME from time to time
+ * and restores them at the start, so the queue can schedule right away instead of asking all slaves at once.
+ * <p>
+ * The less a restored free space can be trusted the older it is: it is reduced in proportion to its age and
+ * dropped after the maximum age. The restored snapshots are dated back by a random part of the refresh interval,
+ * so the slaves are asked again one after another within the first interval.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class WarmStart {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(WarmStart.class.getName());
+
+    /**
+     * Time in milliseconds after which a saved free space is not restored.
+     */
+    static final long MAX_AGE = Long.getLong(WarmStart.class.getName() + ".maxAge", 3600000L);
+
+    /**
+     * Time in milliseconds between two saves.
+     */
+    static final long SAVE_INTERVAL = Long.getLong(WarmStart.class.getName() + ".saveInterval", 300000L);
+
+    private WarmStart() {
+    }
+
+    private static XmlFile getFile() {
+        return new XmlFile(Jenkins.XSTREAM, new File(Jenkins.getInstance().getRootDir(), WarmStart.class.getName() + ".xml"));
+    }
+
+    /**
+     * Saves the current state.
+     */
+    static void save() throws IOException {
+        getFile().write(State.capture());
+    }
+
+    /**
+     * Restores the saved state after the jobs are loaded, so the workspaces can be resolved to projects.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void load() {
+        XmlFile file = getFile();
+
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            ((State) file.read()).restore(System.currentTimeMillis(), new Random());
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "could not restore the free disk space of the slaves", e);
+        } catch (RuntimeException e) {
+            // a broken or incompatible file is as good as none
+            LOG.log(Level.WARNING, "could not restore the free disk space of the slaves", e);
+        }
+    }
+
+    /**
+     * The saved state.
+     */
+    static final class State {
+        private final Map<String, NodeState> nodes = new HashMap<String, NodeState>();
+
+        /**
+         * the measured workspace sizes by job name
+         */
+        private final Map<String, long[]> sizes = new HashMap<String, long[]>();
+
+        static State capture() {
+            State state = new State();
+            FreeSpaceCache cache = FreeSpaceCache.get();
+            WorkspaceIndex index = WorkspaceIndex.get();
+
+            for (String nodeName : cache.getNodeNames()) {
+                FreeSpaceCache.Snapshot snapshot = cache.getLastSnapshot(nodeName);
+                Map<String, String> workspaces = index.getWorkspaces(nodeName);
+
+                if (snapshot != null && workspaces != null) {
+                    state.nodes.put(nodeName, new NodeState(snapshot, workspaces, index.getCustomWorkspaces(nodeName)));
+                }
+            }
+
+            RequiredSpaceEstimator estimator = RequiredSpaceEstimator.get();
+            for (String jobName : estimator.getJobNames()) {
+                state.sizes.put(jobName, estimator.getSizes(jobName));
+            }
+
+            return state;
+        }
+
+        void restore(long now, Random random) {
+            for (Map.Entry<String, long[]> jobSizes : this.sizes.entrySet()) {
+                RequiredSpaceEstimator.get().restore(jobSizes.getKey(), jobSizes.getValue());
+            }
+
+            int restored = 0;
+
+            for (Map.Entry<String, NodeState> node : this.nodes.entrySet()) {
+                NodeState nodeState = node.getValue();
+                long age = now - nodeState.timestamp;
+
+                if (age < 0L || age >= MAX_AGE) {
+                    continue;
+                }
+
+                double confidence = 1.0 - (double) age / MAX_AGE;
+                long timestamp = now - (long) (random.nextDouble() * FreeSpaceCache.REFRESH_INTERVAL);
+
+                FreeSpaceCache.get().restore(node.getKey(), nodeState.toSnapshot(confidence, timestamp));
+                WorkspaceIndex.get().restore(node.getKey(), nodeState.workspaces, nodeState.customWorkspaces);
+                restored++;
+            }
+
+            LOG.log(Level.INFO, "restored the free disk space of " + restored + " slaves");
+        }
+
+        Map<String, NodeState> getNodes() {
+            return nodes;
+        }
+    }
+
+    /**
+     * The saved state of a node.
+     */
+    static final class NodeState {
+        private final Long usableSpace;
+
+        private final long totalSpace;
+
+        private final long timestamp;
+
+        private final HashMap<String, String> locations;
+
+        private final HashMap<String, Long> storeUsableSpace;
+
+        private final HashMap<String, String> workspaces;
+
+        private final HashMap<String, String> customWorkspaces;
+
+        NodeState(FreeSpaceCache.Snapshot snapshot, Map<String, String> workspaces, Map<String, String> customWorkspaces) {
+            this.usableSpace = snapshot.getUsableSpace();
+            this.totalSpace = snapshot.getTotalSpace();
+            this.timestamp = snapshot.getTimestamp();
+            this.locations = new HashMap<String, String>(snapshot.getLocations());
+            this.storeUsableSpace = new HashMap<String, Long>(snapshot.getStoreUsableSpace());
+            this.workspaces = new HashMap<String, String>(workspaces);
+            this.customWorkspaces = new HashMap<String, String>(customWorkspaces);
+        }
+
+        /**
+         * Returns the snapshot with the free space reduced to the given confidence.
+         */
+        FreeSpaceCache.Snapshot toSnapshot(double confidence, long timestamp) {
+            Map<String, Long> reducedStoreUsableSpace = new HashMap<String, Long>();
+
+            for (Map.Entry<String, Long> store : this.storeUsableSpace.entrySet()) {
+                reducedStoreUsableSpace.put(store.getKey(), reduce(store.getValue(), confidence));
+            }
+
+            return new FreeSpaceCache.Snapshot(reduce(this.usableSpace, confidence), this.totalSpace, timestamp,
+                    new HashMap<String, String>(this.locations), reducedStoreUsableSpace);
+        }
+
+        private static Long reduce(Long usableSpace, double confidence) {
+            return usableSpace != null ? Long.valueOf((long) (usableSpace * confidence)) : null;
+        }
+    }
+
+    /**
+     * Saves the state periodically.
+     */
+    @Extension
+    public static final class SaveWork extends AsyncPeriodicWork {
+        public SaveWork() {
+            super("Space left save");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return SAVE_INTERVAL;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            WarmStart.save();
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package hudson.plugins.space_left;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Item;
+import hudson.model.Node;
+import hudson.model.ItemGroup;
+import hudson.model.TaskListener;
+import hudson.model.WorkspaceListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Knows which projects have workspaces on which node. The index is kept current by build, workspace and item events
+ * and reconciled with the workspace directories of the slaves by {@link FreeSpaceRefreshWork}, so the required
+ * space of a node can be computed without listing the workspace directory on the slave.
+ * <p>
+ * Workspaces are identified by their path relative to the workspace directory of the slave, which is nested for
+ * jobs in folders and for the configurations of multi-configuration projects, and belong to projects by full name.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class WorkspaceIndex {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(WorkspaceIndex.class.getName());
+
+    /**
+     * the only instance
+     */
+    private static final WorkspaceIndex INSTANCE = new WorkspaceIndex();
+
+    /**
+     * the full project names by workspace path by node name
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, String>> workspaces = new ConcurrentHashMap<String, ConcurrentMap<String, String>>();
+
+    /**
+     * the full project names by existing custom workspace by node name
+     */
+    private final ConcurrentMap<String, Map<String, String>> customWorkspaces = new ConcurrentHashMap<String, Map<String, String>>();
+
+    private WorkspaceIndex() {
+    }
+
+    /**
+     * Returns the only instance of the index.
+     * @return the index
+     */
+    public static WorkspaceIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the workspaces of the given node.
+     *
+     * @param nodeName the name of the node
+     * @return the full project names by workspace path or null, if the node has not been indexed yet
+     */
+    public Map<String, String> getWorkspaces(String nodeName) {
+        return this.workspaces.get(nodeName);
+    }
+
+    /**
+     * Returns the custom workspaces that exist on the given node, as found by the last reconcile.
+     *
+     * @param nodeName the name of the node
+     * @return the full project names by custom workspace, empty if the node has not been indexed yet
+     */
+    public Map<String, String> getCustomWorkspaces(String nodeName) {
+        Map<String, String> nodeCustomWorkspaces = this.customWorkspaces.get(nodeName);
+
+        if (nodeCustomWorkspaces == null) {
+            return Collections.emptyMap();
+        }
+        return nodeCustomWorkspaces;
+    }
+
+    /**
+     * Asks the slave for its workspace directories and replaces the indexed workspaces of the node.
+     * The free space the slave answered is passed to the {@link FreeSpaceCache}.
+     *
+     * @param node the node to reconcile
+     */
+    public void reconcile(Node node) throws IOException, InterruptedException {
+        SpaceProbe.probe(node);
+    }
+
+    /**
+     * Replaces the indexed workspaces of the node with the workspace directories the slave answered.
+     *
+     * @param nodeName the name of the node
+     * @param result the answer of the slave
+     * @param customWorkspaces the full project names by custom workspace the slave has been asked for
+     */
+    void update(String nodeName, SpaceProbe.Result result, Map<String, String> customWorkspaces) {
+        Map<String, String> nodeWorkspaces = new HashMap<String, String>();
+        WorkspaceTrie trie = WorkspaceTrie.get();
+
+        for (String path : result.getWorkspaces().keySet()) {
+            String projectName = trie.resolve(path);
+            if (projectName != null) {
+                nodeWorkspaces.put(path, projectName);
+            }
+        }
+
+        this.put(nodeName, nodeWorkspaces);
+
+        // the slave only resolved the custom workspaces that exist
+        Map<String, String> nodeCustomWorkspaces = new HashMap<String, String>();
+
+        for (Map.Entry<String, String> customWorkspace : customWorkspaces.entrySet()) {
+            if (result.getLocations().containsKey(customWorkspace.getKey())) {
+                nodeCustomWorkspaces.put(customWorkspace.getKey(), customWorkspace.getValue());
+            }
+        }
+
+        this.customWorkspaces.put(nodeName, Collections.unmodifiableMap(nodeCustomWorkspaces));
+        RequiredSpaceMemo.get().invalidate();
+    }
+
+    /**
+     * Replaces the indexed workspaces of the node.
+     *
+     * @param nodeName the name of the node
+     * @param nodeWorkspaces the full project names by workspace path
+     */
+    void put(String nodeName, Map<String, String> nodeWorkspaces) {
+        this.workspaces.put(nodeName, new ConcurrentHashMap<String, String>(nodeWorkspaces));
+        RequiredSpaceMemo.get().invalidate();
+    }
+
+    /**
+     * Restores the workspaces of the given node, if it has not been indexed since the start.
+     *
+     * @param nodeName the name of the node
+     * @param nodeWorkspaces the full project names by workspace path
+     * @param nodeCustomWorkspaces the full project names by custom workspace
+     */
+    void restore(String nodeName, Map<String, String> nodeWorkspaces, Map<String, String> nodeCustomWorkspaces) {
+        if (this.workspaces.putIfAbsent(nodeName, new ConcurrentHashMap<String, String>(nodeWorkspaces)) == null) {
+            this.customWorkspaces.putIfAbsent(nodeName,
+                    Collections.unmodifiableMap(new HashMap<String, String>(nodeCustomWorkspaces)));
+            RequiredSpaceMemo.get().invalidate();
+        }
+    }
+
+    /**
+     * Adds a workspace to the given node. Does nothing, if the node has not been indexed yet, as
+     * the next reconcile will find the directory anyway.
+     *
+     * @param nodeName the name of the node
+     * @param path the path of the workspace relative to the workspace directory
+     */
+    public void add(String nodeName, String path) {
+        ConcurrentMap<String, String> nodeWorkspaces = this.workspaces.get(nodeName);
+
+        if (nodeWorkspaces == null) {
+            return;
+        }
+
+        String projectName = WorkspaceTrie.get().resolve(path);
+        if (projectName != null && !projectName.equals(nodeWorkspaces.put(path, projectName))) {
+            RequiredSpaceMemo.get().invalidate();
+        }
+    }
+
+    /**
+     * Removes a workspace from the given node.
+     *
+     * @param nodeName the name of the node
+     * @param path the path of the workspace relative to the workspace directory
+     */
+    public void remove(String nodeName, String path) {
+        Map<String, String> nodeWorkspaces = this.workspaces.get(nodeName);
+
+        if (nodeWorkspaces != null && nodeWorkspaces.remove(path) != null) {
+            RequiredSpaceMemo.get().invalidate();
+        }
+    }
+
+    /**
+     * Removes the workspaces of the given project from all nodes, and those of the items inside it, like the
+     * configurations of a multi-configuration project or the jobs of a folder.
+     *
+     * @param projectName the full name of the project
+     */
+    public void removeProject(String projectName) {
+        String prefix = projectName + "/";
+
+        for (Map<String, String> nodeWorkspaces : this.workspaces.values()) {
+            for (Iterator<String> it = nodeWorkspaces.values().iterator(); it.hasNext(); ) {
+                String name = it.next();
+                if (name.equals(projectName) || name.startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+        RequiredSpaceMemo.get().invalidate();
+    }
+
+    /**
+     * Forgets the given node.
+     *
+     * @param nodeName the name of the node
+     */
+    public void removeNode(String nodeName) {
+        this.workspaces.remove(nodeName);
+        this.customWorkspaces.remove(nodeName);
+        RequiredSpaceMemo.get().removeNode(nodeName);
+    }
+
+    /**
+     * Returns the names of all indexed nodes.
+     * @return the node names
+     */
+    public Iterable<String> getNodeNames() {
+        return this.workspaces.keySet();
+    }
+
+    /**
+     * Returns the path of the given workspace relative to the workspace directory of the given node.
+     *
+     * @param node the node
+     * @param workspace the workspace on the node
+     * @return the path separated by <tt>/</tt> or null, if the workspace is not below the workspace directory
+     */
+    static String getPath(Node node, FilePath workspace) {
+        if (node == null || workspace == null || node.getRootPath() == null) {
+            return null;
+        }
+
+        String workspaceDir = node.getRootPath().child(SpaceProbe.DEFAULT_LOCATION).getRemote();
+        String remote = workspace.getRemote();
+
+        if (remote.length() <= workspaceDir.length() + 1 || !remote.startsWith(workspaceDir)) {
+            return null;
+        }
+
+        char separator = remote.charAt(workspaceDir.length());
+        if (separator != '/' && separator != '\\') {
+            return null;
+        }
+
+        return remote.substring(workspaceDir.length() + 1).replace('\\', '/');
+    }
+
+    /**
+     * Adds the workspace of the given build to the index, if it is below the workspace directory.
+     *
+     * @param build the build using the workspace
+     * @param workspace the workspace of the build
+     */
+    void add(AbstractBuild<?, ?> build, FilePath workspace) {
+        Node node = build.getBuiltOn();
+        String path = getPath(node, workspace);
+
+        if (path != null) {
+            this.add(node.getNodeName(), path);
+        }
+    }
+
+    /**
+     * Returns the full name the given item had before it has been renamed.
+     */
+    static String getOldFullName(Item item, String oldName) {
+        ItemGroup parent = item.getParent();
+        String parentName = parent != null ? parent.getFullName() : "";
+
+        return parentName.length() > 0 ? parentName + "/" + oldName : oldName;
+    }
+
+    /**
+     * Updates the index when builds complete, in case the workspace has been created without checking it out.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<AbstractBuild> {
+        public RunListenerImpl() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            WorkspaceIndex.get().add(build, build.getWorkspace());
+        }
+    }
+
+    /**
+     * Updates the index when projects are renamed or deleted. The workspaces of a renamed project keep their
+     * old name on the slaves and do no longer belong to the project.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            WorkspaceIndex.get().removeProject(getOldFullName(item, oldName));
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            WorkspaceIndex.get().removeProject(item.getFullName());
+        }
+    }
+
+    /**
+     * Updates the index when a build is about to use its workspace and when the workspace of a project is wiped out.
+     * When a build starts, its workspace has not been decided yet.
+     */
+    @Extension
+    public static final class WorkspaceListenerImpl extends WorkspaceListener {
+        @Override
+        public void beforeUse(AbstractBuild b, FilePath workspace, BuildListener listener) {
+            WorkspaceIndex.get().add(b, workspace);
+        }
+
+        @Override
+        public void afterDelete(AbstractProject project) {
+            AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) project.getLastBuild();
+
+            if (build != null) {
+                String path = getPath(build.getBuiltOn(), build.getWorkspace());
+                if (path != null) {
+                    WorkspaceIndex.get().remove(build.getBuiltOn().getNodeName(), path);
+                }
+
+                try {
+                    SpaceLeftBuilder.deleteManifest(build.getBuiltOn(), build.getWorkspace());
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "could not delete the manifest of " + build.getWorkspace(), e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
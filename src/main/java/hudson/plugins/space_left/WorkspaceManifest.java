@@ -0,0 +1,193 @@
+package hudson.plugins.space_left;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The sizes of the directories of a workspace at the last measurement, stored on the slave. Directories whose
+ * modification time has not changed since are not listed again by the {@link WorkspaceSizeWalker}.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+final class WorkspaceManifest {
+    /**
+     * marks a manifest file
+     */
+    private static final int MAGIC = 0x53504c4d;
+
+    /**
+     * the version of the file format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * the number of incremental measurements since the last full measurement
+     */
+    private final int runs;
+
+    /**
+     * the measured root directory
+     */
+    private final Directory root;
+
+    WorkspaceManifest(int runs, Directory root) {
+        this.runs = runs;
+        this.root = root;
+    }
+
+    int getRuns() {
+        return runs;
+    }
+
+    Directory getRoot() {
+        return root;
+    }
+
+    /**
+     * Reads the manifest from the given file.
+     *
+     * @param file the manifest file
+     * @return the manifest or null, if the file does not exist or cannot be read
+     */
+    static WorkspaceManifest read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                int runs = in.readInt();
+                return new WorkspaceManifest(runs, readDirectory(in));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // measure everything again
+            return null;
+        }
+    }
+
+    /**
+     * Writes the manifest to the given file. The file is replaced at once, so a measurement that is interrupted
+     * does not leave a broken manifest.
+     *
+     * @param file the manifest file
+     */
+    void write(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.runs);
+            writeDirectory(out, this.root);
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            // renameTo does not replace existing files on every platform
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("could not write " + file);
+            }
+        }
+    }
+
+    private static Directory readDirectory(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        long modified = in.readLong();
+        long ownSize = in.readLong();
+        Directory[] children = new Directory[in.readInt()];
+
+        for (int i = 0; i < children.length; i++) {
+            children[i] = readDirectory(in);
+        }
+
+        return new Directory(name, modified, ownSize, children);
+    }
+
+    private static void writeDirectory(DataOutputStream out, Directory directory) throws IOException {
+        out.writeUTF(directory.name);
+        out.writeLong(directory.modified);
+        out.writeLong(directory.ownSize);
+        out.writeInt(directory.children.length);
+
+        for (Directory child : directory.children) {
+            writeDirectory(out, child);
+        }
+    }
+
+    /**
+     * A measured directory.
+     */
+    static final class Directory {
+        /**
+         * the name of the directory
+         */
+        final String name;
+
+        /**
+         * the modification time of the directory in microseconds
+         */
+        final long modified;
+
+        /**
+         * the size of the directory itself and all files directly in it
+         */
+        final long ownSize;
+
+        /**
+         * the subdirectories
+         */
+        final Directory[] children;
+
+        /**
+         * the size of the directory and everything below
+         */
+        final long totalSize;
+
+        Directory(String name, long modified, long ownSize, Directory[] children) {
+            this.name = name;
+            this.modified = modified;
+            this.ownSize = ownSize;
+            this.children = children;
+
+            long size = ownSize;
+            for (Directory child : children) {
+                size += child.totalSize;
+            }
+            this.totalSize = size;
+        }
+
+        /**
+         * Returns the subdirectories by name.
+         * @return the subdirectories by name
+         */
+        Map<String, Directory> getChildrenByName() {
+            Map<String, Directory> childrenByName = new HashMap<String, Directory>();
+            for (Directory child : this.children) {
+                childrenByName.put(child.name, child);
+            }
+            return childrenByName;
+        }
+    }
+}
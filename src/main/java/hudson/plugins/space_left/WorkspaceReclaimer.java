@@ -0,0 +1,477 @@
+package hudson.plugins.space_left;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Slave;
+import hudson.slaves.WorkspaceList;
+import hudson.util.DaemonThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes the least recently used workspaces of a node that has not enough free disk space for an item no other
+ * node can take, until the space the item misses is free. The workspaces are taken from the {@link WorkspaceIndex},
+ * workspaces of running builds and recently used ones are kept. A workspace has been used last by the last build of
+ * its project on the node, like core's workspace clean-up sees it, as the modification time of the workspace
+ * directory does not change when a build only modifies nested files. The size of a workspace is measured on the
+ * slave before it is deleted. A workspace that is in use or has been used since it has been selected is kept.
+ * Whether another node fits the item and the deletions run in the background, outside of the queue lock, and the
+ * deletions are limited per node.
+ * <p>
+ * Disabled by default, enabled by the system property <tt>hudson.plugins.space_left.WorkspaceReclaimer.enabled</tt>.
+ * With <tt>hudson.plugins.space_left.WorkspaceReclaimer.dryRun</tt> the workspaces are only logged.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class WorkspaceReclaimer {
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(WorkspaceReclaimer.class.getName());
+
+    /**
+     * True, if workspaces are reclaimed.
+     */
+    static final boolean ENABLED = Boolean.getBoolean(WorkspaceReclaimer.class.getName() + ".enabled");
+
+    /**
+     * True, if the workspaces are only logged instead of deleted.
+     */
+    static final boolean DRY_RUN = Boolean.getBoolean(WorkspaceReclaimer.class.getName() + ".dryRun");
+
+    /**
+     * Time in milliseconds a workspace must not have been used to be deleted.
+     */
+    static final long MIN_IDLE_TIME = Long.getLong(WorkspaceReclaimer.class.getName() + ".minIdleTime", 86400000L);
+
+    /**
+     * The number of workspaces deleted per node within the rate interval at most.
+     */
+    static final int MAX_DELETIONS = Integer.getInteger(WorkspaceReclaimer.class.getName() + ".maxDeletions", 5);
+
+    /**
+     * Time in milliseconds the maximum number of deletions applies to.
+     */
+    static final long RATE_INTERVAL = Long.getLong(WorkspaceReclaimer.class.getName() + ".rateInterval", 3600000L);
+
+    /**
+     * The number of builds of a project looked at for the last build on a node at most.
+     */
+    static final int MAX_BUILDS_SCANNED = Integer.getInteger(WorkspaceReclaimer.class.getName() + ".maxBuildsScanned", 50);
+
+    /**
+     * the only instance
+     */
+    private static final WorkspaceReclaimer INSTANCE = new WorkspaceReclaimer();
+
+    /**
+     * the times of the last deletions by node name
+     */
+    private final ConcurrentMap<String, LinkedList<Long>> deletions = new ConcurrentHashMap<String, LinkedList<Long>>();
+
+    /**
+     * the names of the nodes with a reclaim waiting in the executor
+     */
+    private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * executes the reclaims outside of the queue lock
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
+    private WorkspaceReclaimer() {
+    }
+
+    /**
+     * Returns the only instance of the reclaimer.
+     * @return the reclaimer
+     */
+    public static WorkspaceReclaimer get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Reclaims workspaces of the given node in the background for an item blocked on it, if no other online node
+     * the item may run on has enough free space for it. Does nothing, if reclaiming is disabled or a reclaim of
+     * the node is already waiting. Called by the dispatcher, so only the request is queued here.
+     *
+     * @param nodeName the name of the node
+     * @param spaceNeeded the space needed by the item or -1, if it is taken from its project
+     * @param location the workspace location of the item, see {@link SpaceProbe#DEFAULT_LOCATION}
+     * @param currentProjectName the name of the project whose workspace is not counted or null
+     * @param duration the estimated duration of the item in milliseconds or -1, if it is not known
+     * @param label the label of the item or null
+     */
+    public void requestReclaim(final String nodeName, final long spaceNeeded, final String location,
+                               final String currentProjectName, final long duration, final Label label) {
+        if (!ENABLED || this.pending.putIfAbsent(nodeName, Boolean.TRUE) != null) {
+            return;
+        }
+
+        this.executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Jenkins jenkins = Jenkins.getInstance();
+                    Node node = jenkins != null ? jenkins.getNode(nodeName) : null;
+                    if (node == null) {
+                        return;
+                    }
+
+                    Long headroom = SpaceLeftQueueTaskDispatcher.getHeadroom(nodeName, spaceNeeded, location,
+                            currentProjectName, duration, ProjectSpaceCache.get());
+
+                    if (headroom != null && headroom <= 0L
+                            && !fitsElsewhere(node, label, spaceNeeded, location, currentProjectName, duration)) {
+                        reclaim(node, 1L - headroom);
+                    }
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "could not reclaim workspaces of " + nodeName, e);
+                } catch (InterruptedException e) {
+                    LOG.log(Level.WARNING, "could not reclaim workspaces of " + nodeName, e);
+                } finally {
+                    pending.remove(nodeName);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns true, if another online node the item may run on has enough free space for it or is not checked
+     * for free space, like the master. Then the item runs there instead.
+     */
+    private static boolean fitsElsewhere(Node node, Label label, long spaceNeeded, String location,
+                                         String currentProjectName, long duration) {
+        List<Node> nodes = new ArrayList<Node>(Jenkins.getInstance().getNodes());
+        nodes.add(Jenkins.getInstance());
+
+        for (Node other : nodes) {
+            Computer computer = other.toComputer();
+
+            if (other.getNodeName().equals(node.getNodeName()) || computer == null || computer.isOffline()
+                    || other.getNumExecutors() <= 0
+                    || (label != null ? !label.contains(other) : other.getMode() == Node.Mode.EXCLUSIVE)) {
+                continue;
+            }
+
+            if (!(other instanceof Slave)) {
+                return true;
+            }
+
+            Long otherHeadroom = SpaceLeftQueueTaskDispatcher.getHeadroom(other.getNodeName(), spaceNeeded, location,
+                    currentProjectName, duration, ProjectSpaceCache.get());
+            if (otherHeadroom != null && otherHeadroom > 0L) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Deletes the least recently used workspaces of the given node, until the missing space is free or no more
+     * deletions are allowed. This method blocks until the slave has answered.
+     *
+     * @param node the node
+     * @param missingSpace the space in bytes to free
+     */
+    void reclaim(Node node, long missingSpace) throws IOException, InterruptedException {
+        String nodeName = node.getNodeName();
+        int allowed = this.getAllowedDeletions(nodeName, System.currentTimeMillis());
+        Computer computer = node.toComputer();
+
+        if (allowed <= 0 || computer == null || computer.isOffline()) {
+            return;
+        }
+
+        // the probe lists the workspace directories with their modification times and updates the index
+        SpaceProbe.Result result = SpaceProbe.probe(node);
+        Map<String, String> workspaces = WorkspaceIndex.get().getWorkspaces(nodeName);
+
+        if (result == null || workspaces == null) {
+            return;
+        }
+
+        final FilePath workspaceDir = node.getRootPath().child(SpaceProbe.DEFAULT_LOCATION);
+        long now = System.currentTimeMillis();
+
+        Map<String, Long> lastUsed = getLastUsed(nodeName, result.getWorkspaces(), workspaces, now);
+        List<String> dirNames = select(lastUsed, workspaces, getWorkspacesInUse(computer), missingSpace,
+                now - MIN_IDLE_TIME, allowed, new WorkspaceSize() {
+                    public long getSize(String path) throws IOException, InterruptedException {
+                        return workspaceDir.child(path).act(new WorkspaceSizeWalker());
+                    }
+                });
+
+        WorkspaceList workspaceList = computer.getWorkspaceList();
+        boolean deleted = false;
+
+        for (String dirName : dirNames) {
+            if (DRY_RUN) {
+                this.recordDeletion(nodeName, System.currentTimeMillis());
+                LOG.log(Level.INFO, "would delete workspace " + dirName + " on " + nodeName + " (dry run)");
+                continue;
+            }
+
+            FilePath workspace = workspaceDir.child(dirName);
+
+            // keeps builds from starting in the workspace while it is deleted, a workspace in use is skipped
+            // instead of waiting for it, the lease then is on another path
+            WorkspaceList.Lease lease = workspaceList.allocate(workspace);
+            try {
+                if (!lease.path.equals(workspace)
+                        || isUsedSince(computer, dirName, workspaces.get(dirName), workspace, lastUsed.get(dirName))) {
+                    LOG.log(Level.FINE, "workspace " + dirName + " on " + nodeName + " has been used, keeping it");
+                    continue;
+                }
+
+                this.recordDeletion(nodeName, System.currentTimeMillis());
+                LOG.log(Level.INFO, "deleting workspace " + dirName + " on " + nodeName + " to free disk space");
+                workspace.deleteRecursive();
+                SpaceLeftBuilder.deleteManifest(node, workspace);
+                WorkspaceIndex.get().remove(nodeName, dirName);
+                deleted = true;
+            } finally {
+                lease.release();
+            }
+        }
+
+        if (deleted) {
+            FreeSpaceCache.get().requestRefresh(nodeName);
+        }
+    }
+
+    /**
+     * Returns true, if the given workspace has been used since it has been selected: a build is running in it,
+     * a build of its project has ended on the node or the workspace directory has been modified.
+     *
+     * @param computer the computer of the node
+     * @param dirName the path of the workspace relative to the workspace directory
+     * @param projectName the full name of the project of the workspace
+     * @param workspace the workspace
+     * @param lastUsed the time of last use the workspace has been selected by
+     */
+    private static boolean isUsedSince(Computer computer, String dirName, String projectName, FilePath workspace,
+                                       long lastUsed) throws IOException, InterruptedException {
+        if (projectName == null || getWorkspacesInUse(computer).contains(dirName)) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        return Math.max(getLastBuild(projectName, computer.getName(), now), workspace.lastModified()) > lastUsed;
+    }
+
+    /**
+     * Returns the times the given workspaces have been used last: the end of the last build of their project on
+     * the given node or the modification time of the workspace directory, whichever is later.
+     *
+     * @param nodeName the name of the node
+     * @param modified the modification times of the workspace directories by workspace path
+     * @param workspaces the full project names by workspace path
+     * @param now the current time, the time of use of running builds
+     * @return the times of last use by workspace path
+     */
+    private static Map<String, Long> getLastUsed(String nodeName, Map<String, Long> modified,
+                                                 Map<String, String> workspaces, long now) {
+        Map<String, Long> lastBuilds = new HashMap<String, Long>();
+        Map<String, Long> lastUsed = new HashMap<String, Long>();
+
+        for (Map.Entry<String, Long> workspace : modified.entrySet()) {
+            String projectName = workspaces.get(workspace.getKey());
+
+            if (projectName == null) {
+                continue;
+            }
+
+            Long lastBuild = lastBuilds.get(projectName);
+            if (lastBuild == null) {
+                lastBuild = getLastBuild(projectName, nodeName, now);
+                lastBuilds.put(projectName, lastBuild);
+            }
+
+            lastUsed.put(workspace.getKey(), Math.max(lastBuild, workspace.getValue()));
+        }
+
+        return lastUsed;
+    }
+
+    /**
+     * Returns the time the last build of the given project on the given node has ended. Only the newest builds are
+     * looked at, if none of them has run on the node, the start of the oldest of them is taken, as the workspace
+     * has not been used since.
+     *
+     * @return the time in milliseconds, the given time if the build is running, or 0 if there is no such build
+     */
+    private static long getLastBuild(String projectName, String nodeName, long now) {
+        AbstractProject<?, ?> project = Jenkins.getInstance().getItemByFullName(projectName, AbstractProject.class);
+
+        if (project == null) {
+            return 0L;
+        }
+
+        int scanned = 0;
+
+        // newest first
+        for (AbstractBuild<?, ?> build : project.getBuilds()) {
+            if (nodeName.equals(build.getBuiltOnStr())) {
+                return build.isBuilding() ? now : build.getTimeInMillis() + build.getDuration();
+            }
+
+            if (++scanned >= MAX_BUILDS_SCANNED) {
+                return build.getTimeInMillis();
+            }
+        }
+
+        return 0L;
+    }
+
+    /**
+     * Selects the workspaces to delete, least recently used first, until their measured sizes cover the missing
+     * space. Workspaces containing the workspaces of other projects, like those of multi-configuration projects,
+     * are kept.
+     *
+     * @param lastUsed the times of last use by workspace path
+     * @param workspaces the full project names by workspace path
+     * @param inUse the paths of the workspaces used by running builds
+     * @param missingSpace the space in bytes to free
+     * @param usedBefore workspaces used after this time are kept
+     * @param maxDeletions the number of workspaces to select at most
+     * @param workspaceSize measures the selected workspaces
+     * @return the paths of the workspaces to delete
+     */
+    static List<String> select(final Map<String, Long> lastUsed, Map<String, String> workspaces, Set<String> inUse,
+                               long missingSpace, long usedBefore, int maxDeletions,
+                               WorkspaceSize workspaceSize) throws IOException, InterruptedException {
+        List<String> candidates = new ArrayList<String>();
+        Set<String> containers = new HashSet<String>();
+
+        for (String path : workspaces.keySet()) {
+            for (int index = path.indexOf('/'); index > 0; index = path.indexOf('/', index + 1)) {
+                containers.add(path.substring(0, index));
+            }
+        }
+
+        for (Map.Entry<String, Long> workspace : lastUsed.entrySet()) {
+            if (workspaces.containsKey(workspace.getKey()) && !inUse.contains(workspace.getKey())
+                    && !containers.contains(workspace.getKey()) && workspace.getValue() < usedBefore) {
+                candidates.add(workspace.getKey());
+            }
+        }
+
+        Collections.sort(candidates, new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                return lastUsed.get(o1).compareTo(lastUsed.get(o2));
+            }
+        });
+
+        List<String> selected = new ArrayList<String>();
+        long freed = 0L;
+
+        for (String dirName : candidates) {
+            if (freed >= missingSpace || selected.size() >= maxDeletions) {
+                break;
+            }
+            selected.add(dirName);
+            freed += workspaceSize.getSize(dirName);
+        }
+
+        return selected;
+    }
+
+    /**
+     * Returns the paths of the workspaces used by the builds running on the given computer.
+     */
+    private static Set<String> getWorkspacesInUse(Computer computer) {
+        Set<String> inUse = new HashSet<String>();
+        List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
+        executors.addAll(computer.getOneOffExecutors());
+
+        for (Executor executor : executors) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+
+            if (executable instanceof AbstractBuild) {
+                String path = WorkspaceIndex.getPath(computer.getNode(), ((AbstractBuild) executable).getWorkspace());
+                if (path != null) {
+                    inUse.add(path);
+                }
+            }
+        }
+
+        return inUse;
+    }
+
+    /**
+     * Returns the number of deletions allowed on the given node at the given time.
+     */
+    int getAllowedDeletions(String nodeName, long now) {
+        LinkedList<Long> nodeDeletions = this.deletions.get(nodeName);
+
+        if (nodeDeletions == null) {
+            return MAX_DELETIONS;
+        }
+
+        synchronized (nodeDeletions) {
+            while (!nodeDeletions.isEmpty() && nodeDeletions.getFirst() < now - RATE_INTERVAL) {
+                nodeDeletions.removeFirst();
+            }
+            return MAX_DELETIONS - nodeDeletions.size();
+        }
+    }
+
+    void recordDeletion(String nodeName, long now) {
+        LinkedList<Long> nodeDeletions = this.deletions.get(nodeName);
+
+        if (nodeDeletions == null) {
+            nodeDeletions = new LinkedList<Long>();
+            LinkedList<Long> existing = this.deletions.putIfAbsent(nodeName, nodeDeletions);
+            if (existing != null) {
+                nodeDeletions = existing;
+            }
+        }
+
+        synchronized (nodeDeletions) {
+            nodeDeletions.addLast(now);
+        }
+    }
+
+    /**
+     * Measures the size of a workspace.
+     */
+    interface WorkspaceSize {
+        /**
+         * @param path the path of the workspace relative to the workspace directory
+         * @return the size of the workspace in bytes
+         */
+        long getSize(String path) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Forgets the given node.
+     *
+     * @param nodeName the name of the node
+     */
+    public void removeNode(String nodeName) {
+        this.deletions.remove(nodeName);
+    }
+}
@@ -0,0 +1,473 @@
+package hudson.plugins.space_left;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executed on the slave to measure the apparent size of a directory tree, like <code>du -sb</code> does.
+ * Symbolic links are not followed and files with several hard links are counted once.
+ * <p>
+ * If a manifest is given, only directories modified since the last measurement are listed again, the sizes of the
+ * other directories are taken from the manifest. Hard links are then only recognized within the listed directories.
+ * <p>
+ * In allocated mode the disk space actually allocated is measured instead, like <code>du -sk</code> does, which is
+ * less than the apparent size for sparse files and on compressing or deduplicating file systems like ZFS or btrfs.
+ * Java does not expose the allocated blocks of a file, so <code>du</code> is run on the slave, once per measurement
+ * and without a manifest. Where it is not available, {@link #UNSUPPORTED} is returned.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class WorkspaceSizeWalker implements FilePath.FileCallable<Long> {
+    /**
+     * Number of threads walking the tree on the slave.
+     */
+    static final int PARALLELISM = Integer.getInteger(WorkspaceSizeWalker.class.getName() + ".parallelism",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Number of incremental measurements after which the whole tree is measured again, to catch files
+     * that have been rewritten in place without modifying their directory.
+     */
+    static final int FULL_MEASURE_INTERVAL = Integer.getInteger(WorkspaceSizeWalker.class.getName() + ".fullMeasureInterval", 10);
+
+    /**
+     * The size returned in allocated mode, if the allocated disk space cannot be measured on the slave.
+     */
+    static final long UNSUPPORTED = -1L;
+
+    /**
+     * the number of threads walking the tree
+     */
+    private final int parallelism;
+
+    /**
+     * the path of the manifest on the slave or null, if the tree is measured completely
+     */
+    private final String manifest;
+
+    /**
+     * the number of incremental measurements after which the whole tree is measured again
+     */
+    private final int fullMeasureInterval;
+
+    /**
+     * true, if the allocated disk space is measured instead of the apparent size
+     */
+    private final boolean allocated;
+
+    public WorkspaceSizeWalker() {
+        this(PARALLELISM);
+    }
+
+    public WorkspaceSizeWalker(int parallelism) {
+        this(parallelism, null);
+    }
+
+    /**
+     * @param parallelism the number of threads walking the tree
+     * @param manifest the path of the manifest on the slave or null, if the tree is measured completely
+     */
+    public WorkspaceSizeWalker(int parallelism, String manifest) {
+        this(parallelism, manifest, false);
+    }
+
+    /**
+     * @param parallelism the number of threads walking the tree
+     * @param manifest the path of the manifest on the slave or null, if the tree is measured completely
+     * @param allocated true, if the allocated disk space is measured instead of the apparent size
+     */
+    public WorkspaceSizeWalker(int parallelism, String manifest, boolean allocated) {
+        this.parallelism = Math.max(1, parallelism);
+        this.manifest = manifest;
+        this.fullMeasureInterval = FULL_MEASURE_INTERVAL;
+        this.allocated = allocated;
+    }
+
+    /**
+     * @param f the directory to measure
+     * @return the size of the directory and everything below in bytes or {@link #UNSUPPORTED}, if the allocated
+     * disk space is to be measured, but <code>du</code> is not available
+     */
+    public Long invoke(File f, VirtualChannel channel) throws IOException {
+        if (this.allocated) {
+            Long size = du(f);
+            return size != null ? size : UNSUPPORTED;
+        }
+
+        try {
+            if (this.manifest != null) {
+                return NioWalker.walk(f, this.parallelism, new File(this.manifest), this.fullMeasureInterval);
+            }
+            return NioWalker.walk(f, this.parallelism);
+        } catch (LinkageError e) {
+            // pre NIO.2
+            return sizeOf(f);
+        }
+    }
+
+    /**
+     * Measures the disk space allocated by the given file with <code>du -sk</code>.
+     *
+     * @param f the file or directory to measure
+     * @return the allocated size in bytes or null, if <code>du</code> is not available or fails
+     */
+    static Long du(File f) {
+        try {
+            // unreadable entries are reported before the total and not counted, like the walker does
+            Process process = new ProcessBuilder("du", "-sk", f.getAbsolutePath()).redirectErrorStream(true).start();
+            process.getOutputStream().close();
+
+            String total = null;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    total = line;
+                }
+            } finally {
+                reader.close();
+            }
+
+            process.waitFor();
+            return parseDu(total);
+        } catch (IOException e) {
+            // no du on this slave
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Parses a line of <code>du -sk</code>.
+     *
+     * @param line the line, the size in kilobytes followed by a tab and the path
+     * @return the size in bytes or null, if the line cannot be parsed
+     */
+    static Long parseDu(String line) {
+        if (line == null) {
+            return null;
+        }
+
+        int end = 0;
+        while (end < line.length() && Character.isDigit(line.charAt(end))) {
+            end++;
+        }
+
+        if (end == 0) {
+            return null;
+        }
+        return Long.parseLong(line.substring(0, end)) * 1024L;
+    }
+
+    /**
+     * Measures the given file with java.io only. Hard links are counted for every link.
+     *
+     * @param f the file or directory to measure
+     * @return the size in bytes
+     */
+    static long sizeOf(File f) throws IOException {
+        long size = f.length();
+
+        File[] children = f.listFiles();
+        if (children != null) {
+            File canonical = f.getCanonicalFile();
+            for (File child : children) {
+                // do not follow symbolic links to directories
+                if (child.isDirectory() && !child.getCanonicalFile().equals(new File(canonical, child.getName()))) {
+                    continue;
+                }
+                size += sizeOf(child);
+            }
+        }
+
+        return size;
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Walks the tree with NIO.2 on a fork/join pool.
+     */
+    @IgnoreJRERequirement
+    static final class NioWalker {
+        /**
+         * the attributes read with the unix view, a single stat per entry
+         */
+        private static final String UNIX_ATTRIBUTES = "unix:size,nlink,dev,ino,isDirectory";
+
+        /**
+         * true, if the file system supports the unix attribute view
+         */
+        private final boolean unix;
+
+        /**
+         * the keys of the files with several hard links, that have been counted already
+         */
+        private final ConcurrentMap<Object, Boolean> counted = new ConcurrentHashMap<Object, Boolean>();
+
+        private NioWalker(boolean unix) {
+            this.unix = unix;
+        }
+
+        static long walk(File f, int parallelism) throws IOException {
+            Path root = f.toPath();
+            NioWalker walker = new NioWalker(root.getFileSystem().supportedFileAttributeViews().contains("unix"));
+
+            BasicFileAttributes attributes = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isDirectory()) {
+                return attributes.size();
+            }
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                return pool.invoke(walker.new DirectoryTask(root));
+            } catch (WalkException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        /**
+         * Measures the tree like {@link #walk(File, int)}, but reuses the sizes of the directories in the given
+         * manifest, that have not been modified since. The manifest is replaced with the new measurement.
+         */
+        static long walk(File f, int parallelism, File manifestFile, int fullMeasureInterval) throws IOException {
+            Path root = f.toPath();
+            NioWalker walker = new NioWalker(root.getFileSystem().supportedFileAttributeViews().contains("unix"));
+
+            BasicFileAttributes attributes = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isDirectory()) {
+                return attributes.size();
+            }
+
+            WorkspaceManifest manifest = WorkspaceManifest.read(manifestFile);
+            WorkspaceManifest.Directory cached = null;
+            int runs = 0;
+
+            if (manifest != null && manifest.getRuns() < fullMeasureInterval) {
+                cached = manifest.getRoot();
+                runs = manifest.getRuns() + 1;
+            }
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            WorkspaceManifest.Directory measured;
+            try {
+                measured = pool.invoke(walker.new IncrementalTask(root, cached));
+            } catch (WalkException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+
+            if (measured == null) {
+                return 0L;
+            }
+
+            new WorkspaceManifest(runs, measured).write(manifestFile);
+            return measured.totalSize;
+        }
+
+        /**
+         * Returns the size of the given entry, or 0 if it is a further link to a file that has been counted already.
+         * Directories are added to the given list and count 0, they are measured by their own task.
+         */
+        private long sizeOf(Path entry, List<Path> subdirectories) throws IOException {
+            if (this.unix) {
+                Map<String, Object> attributes = Files.readAttributes(entry, UNIX_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                long size = (Long) attributes.get("size");
+
+                if ((Boolean) attributes.get("isDirectory")) {
+                    subdirectories.add(entry);
+                    return 0L;
+                } else if ((Integer) attributes.get("nlink") > 1) {
+                    String key = attributes.get("dev") + ":" + attributes.get("ino");
+                    if (this.counted.putIfAbsent(key, Boolean.TRUE) != null) {
+                        return 0L;
+                    }
+                }
+                return size;
+            }
+
+            BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isDirectory()) {
+                subdirectories.add(entry);
+                return 0L;
+            } else if (attributes.fileKey() != null && this.counted.putIfAbsent(attributes.fileKey(), Boolean.TRUE) != null) {
+                return 0L;
+            }
+            return attributes.size();
+        }
+
+        /**
+         * Measures the entries of the given directory, the subdirectories are added to the given list.
+         */
+        private long sizeOfEntries(Path dir, List<Path> subdirectories) throws IOException {
+            long size = 0L;
+
+            DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+            try {
+                for (Path entry : entries) {
+                    try {
+                        size += sizeOf(entry, subdirectories);
+                    } catch (NoSuchFileException e) {
+                        // deleted while walking
+                    }
+                }
+            } finally {
+                entries.close();
+            }
+
+            return size;
+        }
+
+        /**
+         * Measures a directory and its entries and forks a task for every subdirectory.
+         */
+        private final class DirectoryTask extends RecursiveTask<Long> {
+            private final Path dir;
+
+            DirectoryTask(Path dir) {
+                this.dir = dir;
+            }
+
+            @Override
+            protected Long compute() {
+                long size = 0L;
+                List<Path> subdirectories = new ArrayList<Path>();
+
+                try {
+                    size += Files.readAttributes(this.dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).size();
+                    size += sizeOfEntries(this.dir, subdirectories);
+                } catch (NoSuchFileException e) {
+                    // deleted while walking
+                } catch (AccessDeniedException e) {
+                    // not readable, like du does not count it
+                } catch (IOException e) {
+                    throw new WalkException(e);
+                }
+
+                List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>(subdirectories.size());
+                for (Path subdirectory : subdirectories) {
+                    DirectoryTask subtask = new DirectoryTask(subdirectory);
+                    subtask.fork();
+                    subtasks.add(subtask);
+                }
+
+                for (DirectoryTask subtask : subtasks) {
+                    size += subtask.join();
+                }
+
+                return size;
+            }
+        }
+
+        /**
+         * Measures a directory, unless it has not been modified since the cached measurement. The subdirectories
+         * are checked in any case, as their contents may have changed without modifying this directory.
+         */
+        private final class IncrementalTask extends RecursiveTask<WorkspaceManifest.Directory> {
+            private final Path dir;
+
+            private final WorkspaceManifest.Directory cached;
+
+            IncrementalTask(Path dir, WorkspaceManifest.Directory cached) {
+                this.dir = dir;
+                this.cached = cached;
+            }
+
+            @Override
+            protected WorkspaceManifest.Directory compute() {
+                long modified;
+                long ownSize;
+                List<IncrementalTask> subtasks = new ArrayList<IncrementalTask>();
+
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(this.dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    modified = attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+
+                    if (this.cached != null && this.cached.modified == modified) {
+                        ownSize = this.cached.ownSize;
+                        for (WorkspaceManifest.Directory child : this.cached.children) {
+                            subtasks.add(new IncrementalTask(this.dir.resolve(child.name), child));
+                        }
+                    } else {
+                        List<Path> subdirectories = new ArrayList<Path>();
+                        ownSize = attributes.size();
+
+                        try {
+                            ownSize += sizeOfEntries(this.dir, subdirectories);
+                        } catch (AccessDeniedException e) {
+                            // not readable, like du does not count it
+                        }
+
+                        Map<String, WorkspaceManifest.Directory> cachedChildren = this.cached != null
+                                ? this.cached.getChildrenByName()
+                                : Collections.<String, WorkspaceManifest.Directory>emptyMap();
+                        for (Path subdirectory : subdirectories) {
+                            subtasks.add(new IncrementalTask(subdirectory, cachedChildren.get(subdirectory.getFileName().toString())));
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    // deleted while walking
+                    return null;
+                } catch (IOException e) {
+                    throw new WalkException(e);
+                }
+
+                for (IncrementalTask subtask : subtasks) {
+                    subtask.fork();
+                }
+
+                List<WorkspaceManifest.Directory> children = new ArrayList<WorkspaceManifest.Directory>(subtasks.size());
+                for (IncrementalTask subtask : subtasks) {
+                    WorkspaceManifest.Directory child = subtask.join();
+                    if (child != null) {
+                        children.add(child);
+                    }
+                }
+
+                return new WorkspaceManifest.Directory(this.dir.getFileName() != null ? this.dir.getFileName().toString() : "",
+                        modified, ownSize, children.toArray(new WorkspaceManifest.Directory[children.size()]));
+            }
+        }
+    }
+
+    /**
+     * Carries an IOException out of the fork/join pool.
+     */
+    private static final class WalkException extends RuntimeException {
+        WalkException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package hudson.plugins.space_left;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.WorkspaceList;
+import jenkins.model.Jenkins;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves workspace directories below the workspace directory of a slave to the projects they belong to, including
+ * the nested workspaces of jobs in folders and of the configurations of multi-configuration projects. The workspace
+ * paths of all projects are kept in a trie of path segments, so a workspace is resolved by walking its path once
+ * instead of looking up an item for every segment.
+ * <p>
+ * The custom workspaces of all projects are collected with the same walk over the items and cached along with
+ * the trie.
+ * <p>
+ * The trie is built when it is first needed and built again after items have been created, copied, renamed,
+ * deleted or saved. A trie whose build has been overtaken by such a change is used by the caller that has built it,
+ * but not kept.
+ *
+ * @author ffromm, Frederik Fromm
+ */
+public final class WorkspaceTrie {
+    /**
+     * The token that combines the project name and unique number to create unique workspace directory.
+     */
+    static final String COMBINATOR = System.getProperty(WorkspaceList.class.getName(), "@");
+
+    /**
+     * the only instance
+     */
+    private static final WorkspaceTrie INSTANCE = new WorkspaceTrie();
+
+    /**
+     * the last trie built, stale if its generation is not the current one
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * counts the invalidations, so a trie built from items that have changed meanwhile is not kept
+     */
+    private volatile long generation;
+
+    private WorkspaceTrie() {
+    }
+
+    /**
+     * Returns the only instance of the trie.
+     * @return the trie
+     */
+    public static WorkspaceTrie get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the full name of the project the given workspace belongs to.
+     *
+     * @param path the path of the workspace relative to the workspace directory, separated by <tt>/</tt>
+     * @return the full name of the project or null, if the workspace does not belong to a project
+     */
+    public String resolve(String path) {
+        return resolve(this.getSnapshot().root, path);
+    }
+
+    /**
+     * Returns the workspace paths that contain the workspaces of other projects, like folders or
+     * multi-configuration projects. Only these are listed by the slave below the workspace directory.
+     *
+     * @return the workspace paths relative to the workspace directory
+     */
+    public Set<String> getContainers() {
+        return this.getSnapshot().root.getContainers();
+    }
+
+    /**
+     * Returns the custom workspaces of all projects. Workspaces containing variables are left out,
+     * as they are only known when a build runs.
+     *
+     * @return the full project names by custom workspace
+     */
+    public Map<String, String> getCustomWorkspaces() {
+        return this.getSnapshot().customWorkspaces;
+    }
+
+    /**
+     * Builds the trie again, when it is needed next. A build in progress is not kept.
+     */
+    public synchronized void invalidate() {
+        this.generation++;
+    }
+
+    private Snapshot getSnapshot() {
+        // read before the items, so a change while building is noticed
+        long started = this.generation;
+        Snapshot current = this.snapshot;
+
+        if (current != null && current.generation == started) {
+            return current;
+        }
+
+        Map<String, String> projects = new HashMap<String, String>();
+        Map<String, String> customWorkspaces = new HashMap<String, String>();
+
+        for (AbstractProject<?, ?> project : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+            projects.put(getWorkspacePath(project), project.getFullName());
+
+            String customWorkspace = project.getCustomWorkspace();
+            if (customWorkspace != null && customWorkspace.length() > 0 && !customWorkspace.contains("$")) {
+                customWorkspaces.put(customWorkspace, project.getFullName());
+            }
+        }
+
+        Snapshot built = new Snapshot(started, build(projects), Collections.unmodifiableMap(customWorkspaces));
+        this.publish(built);
+        return built;
+    }
+
+    /**
+     * Keeps the given trie, unless the trie has been invalidated since its build started.
+     *
+     * @param built the trie built
+     * @return true, if the trie is kept
+     */
+    boolean publish(Snapshot built) {
+        Snapshot old;
+
+        synchronized (this) {
+            if (built.generation != this.generation) {
+                return false;
+            }
+            old = this.snapshot;
+            this.snapshot = built;
+        }
+
+        // the monitors on the slaves measure the custom workspaces they have been installed with
+        if (old != null && !old.customWorkspaces.keySet().equals(built.customWorkspaces.keySet())) {
+            SpaceMonitor.reinstall();
+        }
+        return true;
+    }
+
+    /**
+     * @return the current generation, counting the invalidations
+     */
+    long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Returns the path of the workspace of the given project relative to the workspace directory. Jobs in folders
+     * have their workspace at their full name, the configurations of a multi-configuration project below the
+     * workspace of the project at their combination.
+     */
+    private static String getWorkspacePath(AbstractProject<?, ?> project) {
+        if (project instanceof MatrixConfiguration) {
+            MatrixConfiguration configuration = (MatrixConfiguration) project;
+            return getWorkspacePath(configuration.getParent()) + "/" + configuration.getCombination().toString('/', '/');
+        }
+        return project.getFullName();
+    }
+
+    /**
+     * Builds a trie of the given workspace paths.
+     *
+     * @param projects the full names of the projects by workspace path
+     * @return the root of the trie
+     */
+    static Node build(Map<String, String> projects) {
+        Node trieRoot = new Node();
+
+        for (Map.Entry<String, String> project : projects.entrySet()) {
+            Node node = trieRoot;
+            StringBuilder path = new StringBuilder();
+
+            for (String segment : project.getKey().split("/")) {
+                if (segment.length() == 0) {
+                    continue;
+                }
+
+                if (path.length() > 0) {
+                    trieRoot.containers.add(path.toString());
+                    path.append('/');
+                }
+                path.append(segment);
+                node = node.getOrAddChild(segment);
+            }
+
+            node.projectName = project.getValue();
+        }
+
+        return trieRoot;
+    }
+
+    /**
+     * Walks the given workspace path down the trie. A segment that is not known is looked up again without the
+     * suffix added for concurrent builds.
+     *
+     * @param trieRoot the root of the trie
+     * @param path the path of the workspace relative to the workspace directory
+     * @return the full name of the project or null, if the workspace does not belong to a project
+     */
+    static String resolve(Node trieRoot, String path) {
+        Node node = trieRoot;
+
+        for (String segment : path.split("/")) {
+            if (segment.length() == 0) {
+                continue;
+            }
+
+            Node child = node.children.get(segment);
+
+            if (child == null && segment.contains(COMBINATOR)) {
+                child = node.children.get(segment.substring(0, segment.lastIndexOf(COMBINATOR)));
+            }
+
+            if (child == null) {
+                return null;
+            }
+            node = child;
+        }
+
+        return node != trieRoot ? node.projectName : null;
+    }
+
+    /**
+     * A trie with the custom workspaces collected along with it.
+     */
+    static final class Snapshot {
+        /**
+         * the generation the trie has been built in
+         */
+        private final long generation;
+
+        private final Node root;
+
+        private final Map<String, String> customWorkspaces;
+
+        Snapshot(long generation, Node root, Map<String, String> customWorkspaces) {
+            this.generation = generation;
+            this.root = root;
+            this.customWorkspaces = customWorkspaces;
+        }
+    }
+
+    /**
+     * A path segment of the trie.
+     */
+    static final class Node {
+        private final Map<String, Node> children = new HashMap<String, Node>();
+
+        /**
+         * the full name of the project with its workspace at this path or null, if there is none
+         */
+        private String projectName;
+
+        /**
+         * the paths with children, only set on the root
+         */
+        private final Set<String> containers = new HashSet<String>();
+
+        private Node getOrAddChild(String segment) {
+            Node child = this.children.get(segment);
+
+            if (child == null) {
+                child = new Node();
+                this.children.put(segment, child);
+            }
+            return child;
+        }
+
+        Set<String> getContainers() {
+            return Collections.unmodifiableSet(this.containers);
+        }
+    }
+
+    /**
+     * Builds the trie again when items come or go.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onCreated(Item item) {
+            WorkspaceTrie.get().invalidate();
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            WorkspaceTrie.get().invalidate();
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            WorkspaceTrie.get().invalidate();
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            WorkspaceTrie.get().invalidate();
+        }
+
+        @Override
+        public void onLoaded() {
+            WorkspaceTrie.get().invalidate();
+        }
+    }
+
+    /**
+     * Builds the trie again when a job is saved, as the axes of a multi-configuration project or the custom
+     * workspace may have changed.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job) {
+                WorkspaceTrie.get().invalidate();
+            }
+        }
+    }
+}
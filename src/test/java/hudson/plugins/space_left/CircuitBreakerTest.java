@@ -0,0 +1,39 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the circuit breaker for slaves that do not answer
+ */
+public class CircuitBreakerTest extends TestCase {
+    public void testOpenAndClose() {
+        CircuitBreaker circuitBreaker = CircuitBreaker.get();
+        circuitBreaker.removeNode("node");
+
+        for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            circuitBreaker.recordFailure("node", 0L);
+            assertFalse(circuitBreaker.isOpen("node", 0L));
+        }
+
+        circuitBreaker.recordFailure("node", 0L);
+        assertTrue(circuitBreaker.isTripped("node"));
+        assertTrue(circuitBreaker.isOpen("node", CircuitBreaker.OPEN_TIME - 1L));
+        assertFalse(circuitBreaker.isOpen("otherNode", 0L));
+
+        // one call is let through after the open time
+        assertFalse(circuitBreaker.isOpen("node", CircuitBreaker.OPEN_TIME));
+        assertTrue(circuitBreaker.isOpen("node", CircuitBreaker.OPEN_TIME));
+
+        // it fails, so the circuit stays open
+        circuitBreaker.recordFailure("node", CircuitBreaker.OPEN_TIME);
+        assertTrue(circuitBreaker.isOpen("node", 2L * CircuitBreaker.OPEN_TIME - 1L));
+        assertFalse(circuitBreaker.isOpen("node", 2L * CircuitBreaker.OPEN_TIME));
+
+        // it succeeds, so the circuit is closed
+        circuitBreaker.recordSuccess("node");
+        assertFalse(circuitBreaker.isTripped("node"));
+        assertFalse(circuitBreaker.isOpen("node", 2L * CircuitBreaker.OPEN_TIME));
+
+        circuitBreaker.removeNode("node");
+    }
+}
@@ -0,0 +1,118 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the headroom of all nodes written as JSON
+ */
+public class FleetHeadroomTest extends TestCase {
+
+    private static final String NODE = "fleet\"node";
+
+    @Override
+    protected void tearDown() throws Exception {
+        FreeSpaceCache.get().remove(NODE);
+        WorkspaceIndex.get().removeNode(NODE);
+        SpaceReservations.get().removeNode(NODE);
+        RequiredSpaceMemo.get().removeNode(NODE);
+    }
+
+    public void testWrite() throws Exception {
+        Map<String, String> locations = new HashMap<String, String>();
+        locations.put(SpaceProbe.DEFAULT_LOCATION, "dev:1");
+        locations.put("/data/a", "dev:2");
+        Map<String, Long> storeUsableSpace = new HashMap<String, Long>();
+        storeUsableSpace.put("dev:1", 1000L);
+        storeUsableSpace.put("dev:2", 500L);
+        FreeSpaceCache.get().restore(NODE, new FreeSpaceCache.Snapshot(1000L, 2000L, 42L, locations, storeUsableSpace));
+
+        Map<String, String> workspaces = new HashMap<String, String>();
+        workspaces.put("p1", "p1");
+        workspaces.put("p1@2", "p1");
+        Map<String, String> customWorkspaces = new HashMap<String, String>();
+        customWorkspaces.put("/data/a", "a");
+        WorkspaceIndex.get().restore(NODE, workspaces, customWorkspaces);
+
+        SpaceReservations.get().reserve(NODE, "p2", 5L);
+
+        RequiredSpace.ProjectSpace projectSpace = new RequiredSpace.ProjectSpace() {
+            public long getSpaceNeeded(String projectName) {
+                return 10L;
+            }
+        };
+
+        // a project the user may not read is not listed, but counted
+        FleetHeadroom.ProjectFilter filter = new FleetHeadroom.ProjectFilter() {
+            public boolean isVisible(String projectName) {
+                return !"a".equals(projectName);
+            }
+        };
+
+        StringWriter out = new StringWriter();
+        FleetHeadroom.write(out, projectSpace, filter);
+
+        JSONObject node = null;
+        JSONArray nodes = JSONObject.fromObject(out.toString()).getJSONArray("nodes");
+        for (int i = 0; i < nodes.size(); i++) {
+            if (NODE.equals(nodes.getJSONObject(i).getString("name"))) {
+                node = nodes.getJSONObject(i);
+            }
+        }
+
+        assertNotNull(node);
+        assertEquals(42L, node.getLong("timestamp"));
+        assertEquals(1000L, node.getLong("usableSpace"));
+        assertEquals(5L, node.getLong("reservedSpace"));
+        assertEquals(30L, node.getLong("requiredSpace"));
+        assertEquals(1000L - 20L - 5L, node.getLong("headroom"));
+        assertEquals(2, node.getJSONArray("stores").size());
+        assertEquals(20L, node.getJSONObject("projects").getLong("p1"));
+        assertFalse(node.getJSONObject("projects").has("a"));
+    }
+
+    public void testETag() throws Exception {
+        FreeSpaceCache.get().restore(NODE, new FreeSpaceCache.Snapshot(1000L, 2000L, 42L));
+
+        String etag = FleetHeadroom.getETag();
+        assertEquals(etag, FleetHeadroom.getETag());
+
+        SpaceReservations.get().reserve(NODE, "p1", 5L);
+        assertFalse(etag.equals(FleetHeadroom.getETag()));
+
+        etag = FleetHeadroom.getETag();
+        RequiredSpaceMemo.get().invalidate();
+        assertFalse(etag.equals(FleetHeadroom.getETag()));
+
+        // a refresh measuring the same free space does not change the tag, other free space does
+        etag = FleetHeadroom.getETag();
+        FreeSpaceCache.get().remove(NODE);
+        FreeSpaceCache.get().restore(NODE, new FreeSpaceCache.Snapshot(1000L, 2000L, 43L));
+        assertEquals(etag, FleetHeadroom.getETag());
+        FreeSpaceCache.get().remove(NODE);
+        FreeSpaceCache.get().restore(NODE, new FreeSpaceCache.Snapshot(900L, 2000L, 44L));
+        assertFalse(etag.equals(FleetHeadroom.getETag()));
+
+        // the permissions may have changed
+        etag = FleetHeadroom.getETag("alice");
+        FleetHeadroom.invalidateSecurity();
+        assertFalse(etag.equals(FleetHeadroom.getETag("alice")));
+
+        // users may see different projects
+        etag = FleetHeadroom.getETag();
+        assertFalse(etag.equals(FleetHeadroom.getETag("alice")));
+        assertFalse(FleetHeadroom.getETag("alice").equals(FleetHeadroom.getETag("bob")));
+    }
+
+    public void testWriteString() throws Exception {
+        StringWriter out = new StringWriter();
+        FleetHeadroom.writeString(out, "a\"b\\c\n\u0001");
+        assertEquals("\"a\\\"b\\\\c\\n\\u0001\"", out.toString());
+        assertEquals("a\"b\\c\n\u0001", JSONArray.fromObject("[" + out + "]").getString(0));
+    }
+}
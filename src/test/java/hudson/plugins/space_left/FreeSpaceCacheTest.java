@@ -0,0 +1,36 @@
+package hudson.plugins.space_left;
+
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.SlaveComputer;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Tests the cache of the free disk space per node
+ */
+public class FreeSpaceCacheTest extends HudsonTestCase {
+
+    public void testRefresh() throws Exception {
+        DumbSlave slave = this.createSlave(new LabelAtom("label"));
+        SlaveComputer c = slave.getComputer();
+        c.connect(false).get(); // wait until it's connected
+        if (c.isOffline()) {
+            fail("Slave failed to go online: " + c.getLog());
+        }
+
+        FreeSpaceCache cache = FreeSpaceCache.get();
+        cache.remove(slave.getNodeName());
+
+        long before = System.currentTimeMillis();
+        cache.refresh(slave);
+
+        FreeSpaceCache.Snapshot snapshot = cache.getSnapshot(slave);
+        assertNotNull(snapshot);
+        assertNotNull(snapshot.getUsableSpace());
+        assertTrue(snapshot.getUsableSpace() > 0L);
+        assertTrue(snapshot.getTimestamp() >= before);
+
+        cache.remove(slave.getNodeName());
+        assertNull(cache.getSnapshot(slave));
+    }
+}
@@ -0,0 +1,41 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tests the order in which the headroom load balancer tries the nodes
+ */
+public class HeadroomLoadBalancerTest extends TestCase {
+    public void testBestFit() {
+        assertEquals(Arrays.asList(100L, 2000L, null, 0L, -50L), sort(true));
+    }
+
+    public void testWorstFit() {
+        assertEquals(Arrays.asList(2000L, 100L, null, 0L, -50L), sort(false));
+    }
+
+    public void testIsEnabled() {
+        assertTrue(HeadroomLoadBalancer.isEnabled(HeadroomLoadBalancer.BEST_FIT));
+        assertTrue(HeadroomLoadBalancer.isEnabled(HeadroomLoadBalancer.WORST_FIT));
+        assertFalse(HeadroomLoadBalancer.isEnabled(null));
+        assertFalse(HeadroomLoadBalancer.isEnabled("firstFit"));
+    }
+
+    private static List<Long> sort(final boolean bestFit) {
+        List<Long> headrooms = new ArrayList<Long>(Arrays.asList(0L, 2000L, null, -50L, 100L));
+
+        Collections.sort(headrooms, new Comparator<Long>() {
+            public int compare(Long o1, Long o2) {
+                return HeadroomLoadBalancer.HeadroomComparator.compare(o1, o2, bestFit);
+            }
+        });
+
+        return headrooms;
+    }
+}
@@ -0,0 +1,87 @@
+package hudson.plugins.space_left;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tests the sampling of the peak workspace size on the slave
+ */
+public class PeakSamplerTest extends TestCase {
+
+    private File root;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.root = Util.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(this.root);
+    }
+
+    public void testPeak() throws Exception {
+        new PeakSampler.Start("job#1", this.root.getPath(), 20L, false).call();
+
+        File intermediate = new File(this.root, "intermediate");
+        FileOutputStream out = new FileOutputStream(intermediate);
+        try {
+            out.write(new byte[100000]);
+        } finally {
+            out.close();
+        }
+
+        // give the sampler time to see the intermediate file
+        Thread.sleep(500L);
+        assertTrue(intermediate.delete());
+
+        PeakSampler.Peak peak = new PeakSampler.Stop("job#1").call();
+
+        assertNotNull(peak);
+        assertTrue(peak.getPeakSize() >= 100000L);
+        assertTrue(peak.getFinalSize() < 100000L);
+        assertTrue(peak.getPeakSize() > peak.getFinalSize());
+
+        // stopped once only
+        assertNull(new PeakSampler.Stop("job#1").call());
+    }
+
+    public void testGrowingFile() throws Exception {
+        File log = new File(this.root, "log");
+        write(log, 1000, false);
+
+        new PeakSampler.Start("job#2", this.root.getPath(), 20L, false).call();
+        Thread.sleep(200L);
+
+        // grows in place without modifying the directory
+        write(log, 100000, true);
+        Thread.sleep(500L);
+        write(log, 0, false);
+
+        PeakSampler.Peak peak = new PeakSampler.Stop("job#2").call();
+
+        assertNotNull(peak);
+        assertTrue(peak.getPeakSize() >= 101000L);
+        assertTrue(peak.getFinalSize() < 1000L);
+    }
+
+    private static void write(File file, int size, boolean append) throws Exception {
+        FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void testMaxLifetime() throws Exception {
+        new PeakSampler.Start("job#3", this.root.getPath(), 20L, false, 100L).call();
+        Thread.sleep(500L);
+
+        // ended itself without being stopped
+        assertNull(new PeakSampler.Stop("job#3").call());
+    }
+}
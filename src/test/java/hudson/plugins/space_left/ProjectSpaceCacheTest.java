@@ -0,0 +1,37 @@
+package hudson.plugins.space_left;
+
+import hudson.model.FreeStyleProject;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Tests the cache of the space needed by the projects
+ */
+public class ProjectSpaceCacheTest extends HudsonTestCase {
+
+    public void testGetSpaceNeeded() throws Exception {
+        ProjectSpaceCache cache = ProjectSpaceCache.get();
+
+        assertEquals(0L, cache.getSpaceNeeded("spaceConsumer"));
+
+        // created projects are resolved
+        FreeStyleProject project = this.createFreeStyleProject("spaceConsumer");
+        assertEquals(0L, cache.getSpaceNeeded("spaceConsumer"));
+
+        // saving the configuration clears the cache
+        SpaceLeftProperty spaceLeftProperty = new SpaceLeftProperty();
+        spaceLeftProperty.setRequiredSpace(2000000L);
+        project.addProperty(spaceLeftProperty);
+        assertEquals(2000000L, cache.getSpaceNeeded("spaceConsumer"));
+
+        // so does changing the property without saving
+        spaceLeftProperty.setRequiredSpace(1000000L);
+        assertEquals(1000000L, cache.getSpaceNeeded("spaceConsumer"));
+
+        project.renameTo("renamedConsumer");
+        assertEquals(0L, cache.getSpaceNeeded("spaceConsumer"));
+        assertEquals(1000000L, cache.getSpaceNeeded("renamedConsumer"));
+
+        project.delete();
+        assertEquals(0L, cache.getSpaceNeeded("renamedConsumer"));
+    }
+}
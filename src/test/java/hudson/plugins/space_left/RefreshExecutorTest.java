@@ -0,0 +1,51 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the executor running the probes of the slaves
+ */
+public class RefreshExecutorTest extends TestCase {
+    public void testSubmit() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        // opens, when two tasks run at once
+        final CountDownLatch together = new CountDownLatch(2);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < 4 * RefreshExecutor.CONCURRENCY; i++) {
+            futures.add(RefreshExecutor.get().submit(new Runnable() {
+                public void run() {
+                    int current = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), current));
+                    }
+
+                    together.countDown();
+                    try {
+                        together.await(10L, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            }, false));
+        }
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        assertEquals(0L, together.getCount());
+        assertTrue(maxRunning.get() > 1);
+        assertTrue(maxRunning.get() <= RefreshExecutor.CONCURRENCY);
+    }
+}
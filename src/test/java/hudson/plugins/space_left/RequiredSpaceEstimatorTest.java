@@ -0,0 +1,53 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the estimation of the required space from measured workspace sizes
+ */
+public class RequiredSpaceEstimatorTest extends TestCase {
+    public void testPercentile() throws Exception {
+        RequiredSpaceEstimator estimator = RequiredSpaceEstimator.get();
+        estimator.remove("job");
+
+        assertEquals(-1L, estimator.getPercentile("job", 95.0));
+
+        for (long size = 1L; size <= 100L; size++) {
+            estimator.add("job", size);
+        }
+
+        // only the last sizes are kept
+        int window = RequiredSpaceEstimator.WINDOW;
+        assertEquals(100L, estimator.getPercentile("job", 100.0));
+        assertEquals(100L - window + 1, estimator.getPercentile("job", 0.0));
+        assertEquals(100L - window / 2, estimator.getPercentile("job", 50.0));
+
+        estimator.remove("job");
+        assertEquals(-1L, estimator.getPercentile("job", 95.0));
+    }
+
+    public void testAverage() throws Exception {
+        RequiredSpaceEstimator estimator = RequiredSpaceEstimator.get();
+        estimator.remove("job");
+
+        assertEquals(-1L, estimator.getAverage("job", 0.5));
+
+        estimator.add("job", 1000L);
+        assertEquals(1000L, estimator.getAverage("job", 0.5));
+
+        estimator.add("job", 2000L);
+        assertEquals(1500L, estimator.getAverage("job", 0.5));
+
+        estimator.add("job", 500L);
+        assertEquals(1000L, estimator.getAverage("job", 0.5));
+
+        // another weight starts over with the kept sizes
+        assertEquals(500L, estimator.getAverage("job", 1.0));
+
+        estimator.rename("job", "renamed");
+        assertEquals(-1L, estimator.getAverage("job", 1.0));
+        assertEquals(500L, estimator.getAverage("renamed", 1.0));
+
+        estimator.remove("renamed");
+    }
+}
@@ -0,0 +1,84 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the memo of the required space totals per node
+ */
+public class RequiredSpaceMemoTest extends TestCase {
+    public void testGetTotals() throws Exception {
+        Map<String, String> locations = new HashMap<String, String>();
+        locations.put(SpaceProbe.DEFAULT_LOCATION, "dev:1");
+        locations.put("/data/a", "dev:2");
+        FreeSpaceCache.Snapshot snapshot = new FreeSpaceCache.Snapshot(100L, 1000L, 0L, locations,
+                new HashMap<String, Long>());
+
+        Map<String, String> workspaces = new HashMap<String, String>();
+        workspaces.put("p1", "p1");
+        workspaces.put("p1@2", "p1");
+        workspaces.put("p2", "p2");
+        Map<String, String> customWorkspaces = new HashMap<String, String>();
+        customWorkspaces.put("/data/a", "a");
+
+        final int[] calls = new int[1];
+        RequiredSpace.ProjectSpace projectSpace = new RequiredSpace.ProjectSpace() {
+            public long getSpaceNeeded(String projectName) {
+                calls[0]++;
+                return 10L;
+            }
+        };
+
+        RequiredSpaceMemo memo = RequiredSpaceMemo.get();
+        memo.removeNode("node");
+
+        RequiredSpaceMemo.Totals totals = memo.getTotals("node", workspaces, customWorkspaces, snapshot, projectSpace);
+        assertEquals(4, calls[0]);
+
+        for (String currentProjectName : new String[] {null, "p1", "p2", "a"}) {
+            assertEquals(RequiredSpace.getRequiredSpace(workspaces, customWorkspaces, snapshot,
+                    SpaceProbe.DEFAULT_LOCATION, currentProjectName, projectSpace),
+                    totals.getRequiredSpace("dev:1", currentProjectName));
+            assertEquals(RequiredSpace.getRequiredSpace(workspaces, customWorkspaces, snapshot,
+                    "/data/a", currentProjectName, projectSpace),
+                    totals.getRequiredSpace("dev:2", currentProjectName));
+        }
+        assertEquals(0L, totals.getRequiredSpace(null, null));
+
+        // remembered until invalidated
+        calls[0] = 0;
+        assertSame(totals, memo.getTotals("node", workspaces, customWorkspaces, snapshot, projectSpace));
+        assertEquals(0, calls[0]);
+
+        memo.invalidate();
+        assertNotSame(totals, memo.getTotals("node", workspaces, customWorkspaces, snapshot, projectSpace));
+        assertEquals(4, calls[0]);
+
+        memo.removeNode("node");
+    }
+
+    public void testGetRemainingSpaceNeeded() {
+        // written evenly over the estimated duration
+        assertEquals(1000L, RequiredSpaceMemo.getRemainingSpaceNeeded(1000L, 0L, 100L));
+        assertEquals(250L, RequiredSpaceMemo.getRemainingSpaceNeeded(1000L, 75L, 100L));
+        assertEquals(0L, RequiredSpaceMemo.getRemainingSpaceNeeded(1000L, 150L, 100L));
+
+        // all of it, if the duration is not known
+        assertEquals(1000L, RequiredSpaceMemo.getRemainingSpaceNeeded(1000L, 75L, -1L));
+    }
+
+    public void testGetRunningSpaceNeededWithoutJenkins() {
+        FreeSpaceCache.Snapshot snapshot = new FreeSpaceCache.Snapshot(100L, 1000L, 0L, new HashMap<String, String>(),
+                new HashMap<String, Long>());
+        RequiredSpace.ProjectSpace projectSpace = new RequiredSpace.ProjectSpace() {
+            public long getSpaceNeeded(String projectName) {
+                return 10L;
+            }
+        };
+
+        assertEquals(0L, RequiredSpaceMemo.get().getRunningSpaceNeeded("node", null, snapshot, projectSpace));
+        RequiredSpaceMemo.get().removeNode("node");
+    }
+}
@@ -10,6 +10,8 @@ import org.jvnet.hudson.test.HudsonTestCase;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Tests the class to get the required space for a node
@@ -68,6 +70,9 @@ public class RequiredSpaceTest extends HudsonTestCase {
             String[] jobNamesAfter = remoteDir.list();
             assertEquals(3, jobNamesAfter.length);
 
+            // the copies are not built, so they are found by the next reconcile
+            WorkspaceIndex.get().reconcile(slave);
+
             assertEquals(6000000L, requiredSpace.getRequiredSpace(null));
             assertEquals(4000000L, requiredSpace.getRequiredSpace(project));
         } catch (Exception e) {
@@ -94,4 +99,39 @@ public class RequiredSpaceTest extends HudsonTestCase {
 
         assertEquals(2000000L, requiredSpace.getRequiredProjectSpace(project));
     }
+
+    /**
+     * Test that only the workspaces on the file store of the item's workspace are counted
+     */
+    public void testGetRequiredSpacePerStore() {
+        Map<String, String> locations = new HashMap<String, String>();
+        locations.put(SpaceProbe.DEFAULT_LOCATION, "dev:1");
+        locations.put("/data/a", "dev:2");
+        locations.put("/data/b", "dev:2");
+        Map<String, Long> storeUsableSpace = new HashMap<String, Long>();
+        storeUsableSpace.put("dev:1", 100L);
+        storeUsableSpace.put("dev:2", 200L);
+        FreeSpaceCache.Snapshot snapshot = new FreeSpaceCache.Snapshot(100L, 1000L, 0L, locations, storeUsableSpace);
+
+        Map<String, String> workspaces = new HashMap<String, String>();
+        workspaces.put("p1", "p1");
+        Map<String, String> customWorkspaces = new HashMap<String, String>();
+        customWorkspaces.put("/data/a", "a");
+        customWorkspaces.put("/data/b", "b");
+
+        RequiredSpace.ProjectSpace projectSpace = new RequiredSpace.ProjectSpace() {
+            public long getSpaceNeeded(String projectName) {
+                return 10L;
+            }
+        };
+
+        assertEquals(10L, RequiredSpace.getRequiredSpace(workspaces, customWorkspaces, snapshot,
+                SpaceProbe.DEFAULT_LOCATION, null, projectSpace));
+        assertEquals(20L, RequiredSpace.getRequiredSpace(workspaces, customWorkspaces, snapshot, "/data/a", null,
+                projectSpace));
+        assertEquals(10L, RequiredSpace.getRequiredSpace(workspaces, customWorkspaces, snapshot, "/data/a", "a",
+                projectSpace));
+        assertEquals(Long.valueOf(200L), snapshot.getUsableSpace("/data/b"));
+        assertEquals(Long.valueOf(100L), snapshot.getUsableSpace("/unknown"));
+    }
 }
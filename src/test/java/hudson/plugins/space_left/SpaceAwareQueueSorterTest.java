@@ -0,0 +1,66 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the order of the items by the space they need
+ */
+public class SpaceAwareQueueSorterTest extends TestCase {
+    public void testRank() {
+        SpaceAwareQueueSorter.Rank small = new SpaceAwareQueueSorter.Rank(1000L, 0L, 10000L);
+        SpaceAwareQueueSorter.Rank big = new SpaceAwareQueueSorter.Rank(9000L, 0L, 10000L);
+        SpaceAwareQueueSorter.Rank tooBig = new SpaceAwareQueueSorter.Rank(50000L, 0L, 10000L);
+
+        assertTrue(small.fits());
+        assertFalse(tooBig.fits());
+
+        // fitting items first, the smaller ones before the bigger ones
+        assertTrue(small.compareTo(big) < 0);
+        assertTrue(big.compareTo(tooBig) < 0);
+        assertTrue(small.compareTo(tooBig) < 0);
+        assertEquals(0, small.compareTo(new SpaceAwareQueueSorter.Rank(1000L, 0L, 10000L)));
+
+        // a big item that has waited long enough goes before a small new one
+        SpaceAwareQueueSorter.Rank agedBig = new SpaceAwareQueueSorter.Rank(9000L, 9L * SpaceAwareQueueSorter.AGING_INTERVAL, 10000L);
+        assertTrue(agedBig.compareTo(new SpaceAwareQueueSorter.Rank(1000L, 0L, 10000L)) < 0);
+
+        // an item that does not fit any node stays behind, until it starves
+        SpaceAwareQueueSorter.Rank waitingTooBig = new SpaceAwareQueueSorter.Rank(50000L, SpaceAwareQueueSorter.STARVATION_TIME - 1L, 10000L);
+        assertFalse(waitingTooBig.isStarving());
+        assertTrue(waitingTooBig.compareTo(big) > 0);
+    }
+
+    public void testStarvingItemRanksFirst() {
+        SpaceAwareQueueSorter.Rank small = new SpaceAwareQueueSorter.Rank(1000L, 0L, 10000L);
+        SpaceAwareQueueSorter.Rank agedBig = new SpaceAwareQueueSorter.Rank(9000L, 9L * SpaceAwareQueueSorter.AGING_INTERVAL, 10000L);
+        SpaceAwareQueueSorter.Rank starving = new SpaceAwareQueueSorter.Rank(50000L, SpaceAwareQueueSorter.STARVATION_TIME, 10000L);
+        SpaceAwareQueueSorter.Rank starvingLonger = new SpaceAwareQueueSorter.Rank(50000L, 2L * SpaceAwareQueueSorter.STARVATION_TIME, 10000L);
+
+        assertTrue(starving.isStarving());
+        assertFalse(agedBig.isStarving());
+
+        // the large item goes before the ones that fit
+        assertTrue(starving.compareTo(small) < 0);
+        assertTrue(starving.compareTo(agedBig) < 0);
+        assertTrue(small.compareTo(starving) > 0);
+
+        // the starving items by their waiting, the longest first
+        assertTrue(starvingLonger.compareTo(starving) < 0);
+
+        // an item that fits never starves
+        assertFalse(new SpaceAwareQueueSorter.Rank(1000L, 2L * SpaceAwareQueueSorter.STARVATION_TIME, 10000L).isStarving());
+    }
+
+    public void testHolding() {
+        // an item that fits the node once drained and reclaimed holds it
+        assertTrue(SpaceAwareQueueSorter.isHolding(50000L, 60000L, 0L));
+
+        // one that never fits does not, nor does one without a known node
+        assertFalse(SpaceAwareQueueSorter.isHolding(500000L, 60000L, 0L));
+        assertFalse(SpaceAwareQueueSorter.isHolding(50000L, null, 0L));
+
+        // the hold ends after the maximum hold time
+        assertTrue(SpaceAwareQueueSorter.isHolding(50000L, 60000L, SpaceAwareQueueSorter.MAX_HOLD_TIME));
+        assertFalse(SpaceAwareQueueSorter.isHolding(50000L, 60000L, SpaceAwareQueueSorter.MAX_HOLD_TIME + 1L));
+    }
+}
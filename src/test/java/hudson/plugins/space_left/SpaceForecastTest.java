@@ -0,0 +1,53 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the forecast of the free space from its samples
+ */
+public class SpaceForecastTest extends TestCase {
+    public void testTrend() {
+        SpaceForecast forecast = SpaceForecast.get();
+        forecast.removeNode("node");
+
+        Map<String, String> locations = new HashMap<String, String>();
+        locations.put(SpaceProbe.DEFAULT_LOCATION, "dev:2");
+
+        // the root loses 1000 bytes per second, the workspace store gains
+        for (int i = 0; i < SpaceForecast.MIN_SAMPLES; i++) {
+            Map<String, Long> storeUsableSpace = new HashMap<String, Long>();
+            storeUsableSpace.put("dev:2", 100000L + i * 10L);
+
+            assertNull(forecast.getTrend("node", null));
+            forecast.record("node", new FreeSpaceCache.Snapshot(1000000L - i * 1000L, 2000000L, i * 1000L, locations,
+                    storeUsableSpace));
+        }
+
+        SpaceForecast.Trend trend = forecast.getTrend("node", null);
+        assertNotNull(trend);
+        assertEquals(996000L, trend.getUsableSpace());
+        assertEquals(-1.0, trend.getSlope(), 0.0001);
+        assertEquals(-3600000L, trend.getChangePerHour());
+        assertEquals(996000L, trend.getTimeToFull());
+
+        assertEquals(60000L, forecast.getDecline("node", null, 60000L));
+        assertEquals(0L, forecast.getDecline("node", null, -1L));
+
+        // the part explained by the running builds is not projected
+        assertEquals(20000L, forecast.getDecline("node", null, 60000L, 40000L));
+        assertEquals(0L, forecast.getDecline("node", null, 60000L, 100000L));
+
+        // growing free space is not projected
+        assertTrue(forecast.getTrend("node", "dev:2").getSlope() > 0.0);
+        assertEquals(-1L, forecast.getTrend("node", "dev:2").getTimeToFull());
+        assertEquals(0L, forecast.getDecline("node", "dev:2", 60000L));
+
+        assertEquals(2, forecast.getTrends("node").size());
+
+        forecast.removeNode("node");
+        assertNull(forecast.getTrend("node", null));
+    }
+}
@@ -102,5 +102,13 @@ public class SpaceLeftBuilderTest extends HudsonTestCase {
         assertTrue(gotParam);
 
         assertEquals("          <value>" + expectedSize + "</value>", workspaceSizeLine);
+
+        // the history of the estimator is filled from the builds after a restart
+        RequiredSpaceEstimator estimator = RequiredSpaceEstimator.get();
+        estimator.remove(project.getFullName());
+        assertEquals(-1L, estimator.getPercentile(project.getFullName(), 100.0));
+
+        estimator.seed(project);
+        assertEquals(expectedSize, estimator.getPercentile(project.getFullName(), 100.0));
     }
 }
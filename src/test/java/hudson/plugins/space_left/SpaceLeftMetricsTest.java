@@ -0,0 +1,53 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+import net.sf.json.JSONObject;
+
+/**
+ * Tests the metrics per node
+ */
+public class SpaceLeftMetricsTest extends TestCase {
+    public void testHistogram() throws Exception {
+        SpaceLeftMetrics.Histogram histogram = new SpaceLeftMetrics.Histogram();
+
+        histogram.record(0L);
+        histogram.record(1L);
+        histogram.record(1000L);
+        histogram.record(1023L);
+        histogram.record(1024L);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(6L, histogram.getCount());
+        assertEquals(2L, histogram.getBucket(0));
+        assertEquals(2L, histogram.getBucket(9));
+        assertEquals(1L, histogram.getBucket(10));
+        assertEquals(1L, histogram.getBucket(SpaceLeftMetrics.BUCKETS - 1));
+    }
+
+    public void testToJSON() throws Exception {
+        SpaceLeftMetrics metrics = SpaceLeftMetrics.get();
+        metrics.removeNode("node");
+
+        SpaceLeftMetrics.NodeMetrics nodeMetrics = metrics.forNode("node");
+        assertSame(nodeMetrics, metrics.forNode("node"));
+
+        nodeMetrics.recordCanTake(1500L);
+        nodeMetrics.recordRemoteCall(2000000L, false);
+        nodeMetrics.recordRemoteCall(3000000L, true);
+        nodeMetrics.recordCacheLookup(true);
+        nodeMetrics.recordCacheLookup(false);
+        nodeMetrics.recordCacheLookup(true);
+        nodeMetrics.recordNotEnoughFreeDiskSpace();
+
+        JSONObject json = metrics.toJSON().getJSONObject("node");
+        assertEquals(1L, json.getJSONObject("canTake").getLong("count"));
+        assertEquals(2L, json.getJSONObject("remoteCalls").getLong("count"));
+        assertEquals(1L, json.getJSONObject("remoteCalls").getLong("failures"));
+        assertEquals(2L, json.getJSONObject("cache").getLong("hits"));
+        assertEquals(1L, json.getJSONObject("cache").getLong("misses"));
+        assertEquals(1L, json.getJSONObject("blockages").getLong("notEnoughFreeDiskSpace"));
+        assertEquals(0L, json.getJSONObject("blockages").getLong("freeDiskSpaceUnknown"));
+
+        metrics.removeNode("node");
+    }
+}
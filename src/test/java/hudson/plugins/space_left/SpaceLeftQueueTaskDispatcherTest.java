@@ -37,6 +37,7 @@ public class SpaceLeftQueueTaskDispatcherTest extends HudsonTestCase {
         }
 
         // get free space from empty slave
+        FreeSpaceCache.get().refresh(slave);
         SpaceLeftQueueTaskDispatcher spaceLeftQueueTaskDispatcher = new SpaceLeftQueueTaskDispatcher();
 
         // add project to slave
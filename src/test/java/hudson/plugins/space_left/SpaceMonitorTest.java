@@ -0,0 +1,47 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests when the monitor on the slave pushes the free space
+ */
+public class SpaceMonitorTest extends TestCase {
+    public void testHasChanged() {
+        assertFalse(SpaceMonitor.hasChanged(5000L, 5100L, 100L, 1000L));
+        assertTrue(SpaceMonitor.hasChanged(5000L, 5101L, 100L, 1000L));
+        assertTrue(SpaceMonitor.hasChanged(5000L, 4899L, 100L, 1000L));
+
+        // crossing the threshold is pushed, even if the change is small
+        assertTrue(SpaceMonitor.hasChanged(1010L, 990L, 100L, 1000L));
+        assertTrue(SpaceMonitor.hasChanged(990L, 1010L, 100L, 1000L));
+
+        assertFalse(SpaceMonitor.hasChanged(null, null, 100L, 1000L));
+        assertTrue(SpaceMonitor.hasChanged(null, 5000L, 100L, 1000L));
+        assertTrue(SpaceMonitor.hasChanged(5000L, null, 100L, 1000L));
+    }
+
+    public void testHasChangedPerStore() {
+        SpaceProbe.Result pushed = result(5000L, 8000L);
+
+        assertFalse(SpaceMonitor.hasChanged(pushed, result(5050L, 8050L), 100L, 1000L));
+        assertTrue(SpaceMonitor.hasChanged(pushed, result(5050L, 9000L), 100L, 1000L));
+
+        Map<String, String> locations = new HashMap<String, String>();
+        locations.put(SpaceProbe.DEFAULT_LOCATION, "dev:3");
+        assertTrue(SpaceMonitor.hasChanged(pushed, new SpaceProbe.Result(5000L, 10000L, new HashMap<String, Long>(),
+                locations, new HashMap<String, Long>(), new HashMap<String, Long>()), 100L, 1000L));
+    }
+
+    private static SpaceProbe.Result result(long usableSpace, long storeUsableSpace) {
+        Map<String, String> locations = new HashMap<String, String>();
+        locations.put(SpaceProbe.DEFAULT_LOCATION, "dev:2");
+        Map<String, Long> storeUsable = new HashMap<String, Long>();
+        storeUsable.put("dev:2", storeUsableSpace);
+
+        return new SpaceProbe.Result(usableSpace, 10000L, new HashMap<String, Long>(), locations, storeUsable,
+                new HashMap<String, Long>());
+    }
+}
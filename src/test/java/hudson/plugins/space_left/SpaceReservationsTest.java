@@ -0,0 +1,35 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the reservations of space on nodes
+ */
+public class SpaceReservationsTest extends TestCase {
+    public void testReserveAndRelease() throws Exception {
+        SpaceReservations reservations = SpaceReservations.get();
+        reservations.removeNode("node");
+
+        assertEquals(0L, reservations.getReserved("node"));
+
+        reservations.reserve("node", "project", 1000L);
+        reservations.reserve("node", "project", 2000L);
+        reservations.reserve("node", "other", 500L);
+        reservations.reserve("node", "nothing", 0L);
+
+        assertEquals(3500L, reservations.getReserved("node"));
+        assertEquals(0L, reservations.getReserved("otherNode"));
+
+        reservations.release("node", "project");
+        assertEquals(2500L, reservations.getReserved("node"));
+
+        reservations.release("node", "unknown");
+        reservations.release("otherNode", "project");
+        assertEquals(2500L, reservations.getReserved("node"));
+
+        reservations.purge(System.currentTimeMillis() + 1L);
+        assertEquals(0L, reservations.getReserved("node"));
+
+        reservations.removeNode("node");
+    }
+}
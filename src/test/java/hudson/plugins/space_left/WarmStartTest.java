@@ -0,0 +1,55 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests saving and restoring the free space of the slaves
+ */
+public class WarmStartTest extends TestCase {
+    public void testCaptureAndRestore() {
+        FreeSpaceCache cache = FreeSpaceCache.get();
+        WorkspaceIndex index = WorkspaceIndex.get();
+
+        cache.update("node", new SpaceProbe.Result(1000000L, 2000000L, new HashMap<String, Long>()));
+        index.put("node", Collections.singletonMap("project", "project"));
+        RequiredSpaceEstimator.get().add("job", 100L);
+        RequiredSpaceEstimator.get().add("job", 200L);
+
+        WarmStart.State state = WarmStart.State.capture();
+        long timestamp = cache.getLastSnapshot("node").getTimestamp();
+        assertTrue(state.getNodes().containsKey("node"));
+
+        cache.remove("node");
+        index.removeNode("node");
+        RequiredSpaceEstimator.get().remove("job");
+
+        // too old to be trusted at all
+        state.restore(timestamp + WarmStart.MAX_AGE, new Random());
+        assertNull(cache.getLastSnapshot("node"));
+        assertNull(index.getWorkspaces("node"));
+
+        state.restore(timestamp + WarmStart.MAX_AGE / 2L, new Random());
+
+        // half the maximum age, half the free space is trusted
+        FreeSpaceCache.Snapshot snapshot = cache.getLastSnapshot("node");
+        assertNotNull(snapshot);
+        assertEquals(Long.valueOf(500000L), snapshot.getUsableSpace());
+        assertTrue(snapshot.getTimestamp() <= timestamp + WarmStart.MAX_AGE / 2L);
+        assertTrue(snapshot.getTimestamp() >= timestamp + WarmStart.MAX_AGE / 2L - FreeSpaceCache.REFRESH_INTERVAL);
+
+        Map<String, String> workspaces = index.getWorkspaces("node");
+        assertEquals("project", workspaces.get("project"));
+
+        assertEquals(2, RequiredSpaceEstimator.get().getSizes("job").length);
+        assertEquals(200L, RequiredSpaceEstimator.get().getSizes("job")[1]);
+
+        cache.remove("node");
+        index.removeNode("node");
+        RequiredSpaceEstimator.get().remove("job");
+    }
+}
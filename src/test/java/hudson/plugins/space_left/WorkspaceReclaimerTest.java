@@ -0,0 +1,87 @@
+package hudson.plugins.space_left;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the selection of the workspaces to reclaim
+ */
+public class WorkspaceReclaimerTest extends TestCase {
+    private static final WorkspaceReclaimer.WorkspaceSize WORKSPACE_SIZE = new WorkspaceReclaimer.WorkspaceSize() {
+        public long getSize(String path) {
+            return 100L;
+        }
+    };
+
+    public void testSelect() throws Exception {
+        Map<String, Long> lastUsed = new HashMap<String, Long>();
+        lastUsed.put("old", 1000L);
+        lastUsed.put("older", 500L);
+        lastUsed.put("running", 100L);
+        lastUsed.put("recent", 5000L);
+        lastUsed.put("unknown", 10L);
+        lastUsed.put("old@2", 2000L);
+
+        Map<String, String> workspaces = new HashMap<String, String>();
+        workspaces.put("old", "old");
+        workspaces.put("older", "older");
+        workspaces.put("running", "running");
+        workspaces.put("recent", "recent");
+        workspaces.put("old@2", "old");
+
+        // least recently used first, unknown, running and recent workspaces are kept
+        assertEquals(Arrays.asList("older", "old", "old@2"), WorkspaceReclaimer.select(lastUsed, workspaces,
+                Collections.singleton("running"), 1000L, 4000L, 10, WORKSPACE_SIZE));
+
+        // stops when the missing space is covered or the deletions are used up
+        assertEquals(Arrays.asList("older", "old"), WorkspaceReclaimer.select(lastUsed, workspaces,
+                Collections.singleton("running"), 150L, 4000L, 10, WORKSPACE_SIZE));
+        assertEquals(Arrays.asList("older"), WorkspaceReclaimer.select(lastUsed, workspaces,
+                Collections.singleton("running"), 1000L, 4000L, 1, WORKSPACE_SIZE));
+
+        // the measured sizes count, not the space the projects need
+        assertEquals(Arrays.asList("older", "old", "old@2"), WorkspaceReclaimer.select(lastUsed, workspaces,
+                Collections.singleton("running"), 150L, 4000L, 10, new WorkspaceReclaimer.WorkspaceSize() {
+                    public long getSize(String path) {
+                        return 50L;
+                    }
+                }));
+    }
+
+    public void testSelectNested() throws Exception {
+        Map<String, Long> lastUsed = new HashMap<String, Long>();
+        lastUsed.put("matrix", 100L);
+        lastUsed.put("matrix/label/linux", 200L);
+        lastUsed.put("folder/job", 300L);
+
+        Map<String, String> workspaces = new HashMap<String, String>();
+        workspaces.put("matrix", "matrix");
+        workspaces.put("matrix/label/linux", "matrix/label=linux");
+        workspaces.put("folder/job", "folder/job");
+
+        // the workspace of the multi-configuration project contains those of its configurations
+        assertEquals(Arrays.asList("matrix/label/linux", "folder/job"), WorkspaceReclaimer.select(lastUsed, workspaces,
+                Collections.<String>emptySet(), 1000L, 4000L, 10, WORKSPACE_SIZE));
+    }
+
+    public void testRateLimit() {
+        WorkspaceReclaimer reclaimer = WorkspaceReclaimer.get();
+        reclaimer.removeNode("node");
+
+        assertEquals(WorkspaceReclaimer.MAX_DELETIONS, reclaimer.getAllowedDeletions("node", 0L));
+
+        reclaimer.recordDeletion("node", 0L);
+        reclaimer.recordDeletion("node", 10L);
+        assertEquals(WorkspaceReclaimer.MAX_DELETIONS - 2, reclaimer.getAllowedDeletions("node", 10L));
+        assertEquals(WorkspaceReclaimer.MAX_DELETIONS - 1,
+                reclaimer.getAllowedDeletions("node", WorkspaceReclaimer.RATE_INTERVAL + 5L));
+        assertEquals(WorkspaceReclaimer.MAX_DELETIONS,
+                reclaimer.getAllowedDeletions("node", WorkspaceReclaimer.RATE_INTERVAL + 20L));
+
+        reclaimer.removeNode("node");
+    }
+}
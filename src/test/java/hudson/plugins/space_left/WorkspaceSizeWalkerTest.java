@@ -0,0 +1,107 @@
+package hudson.plugins.space_left;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Tests the measurement of a directory tree on the slave
+ */
+public class WorkspaceSizeWalkerTest extends TestCase {
+
+    private File root;
+
+    private File outside;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.root = Util.createTempDir();
+        this.outside = Util.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(this.root);
+        Util.deleteRecursive(this.outside);
+    }
+
+    public void testInvoke() throws Exception {
+        Path rootPath = this.root.toPath();
+        Path sub = Files.createDirectory(rootPath.resolve("sub"));
+        Path file = Files.write(sub.resolve("file"), new byte[1000]);
+
+        // a second link to the same file is not counted again
+        Files.createLink(rootPath.resolve("link"), file);
+
+        // the target of a symbolic link is not counted
+        Path big = Files.write(this.outside.toPath().resolve("big"), new byte[100000]);
+        Path symlink = Files.createSymbolicLink(rootPath.resolve("symlink"), this.outside.toPath());
+
+        long expected = Files.size(rootPath) + Files.size(sub) + 1000L + Files.readAttributes(symlink,
+                java.nio.file.attribute.BasicFileAttributes.class, java.nio.file.LinkOption.NOFOLLOW_LINKS).size();
+
+        assertTrue(Files.exists(big));
+        assertEquals(expected, new WorkspaceSizeWalker(2).invoke(this.root, null).longValue());
+        assertEquals(expected, new WorkspaceSizeWalker(1).invoke(this.root, null).longValue());
+    }
+
+    public void testInvokeIncremental() throws Exception {
+        Path rootPath = this.root.toPath();
+        Path sub = Files.createDirectory(rootPath.resolve("sub"));
+        Files.write(sub.resolve("file"), new byte[1000]);
+
+        String manifest = new File(this.outside, "manifest").getPath();
+        WorkspaceSizeWalker walker = new WorkspaceSizeWalker(2, manifest);
+
+        long expected = new WorkspaceSizeWalker(2).invoke(this.root, null);
+        assertEquals(expected, walker.invoke(this.root, null).longValue());
+        assertTrue(new File(manifest).isFile());
+
+        // unchanged
+        assertEquals(expected, walker.invoke(this.root, null).longValue());
+
+        // new directory with a file
+        Path other = Files.createDirectory(sub.resolve("other"));
+        Files.write(other.resolve("file"), new byte[500]);
+
+        expected = new WorkspaceSizeWalker(2).invoke(this.root, null);
+        assertEquals(expected, walker.invoke(this.root, null).longValue());
+
+        // deleted directory
+        Files.delete(other.resolve("file"));
+        Files.delete(other);
+
+        expected = new WorkspaceSizeWalker(2).invoke(this.root, null);
+        assertEquals(expected, walker.invoke(this.root, null).longValue());
+    }
+
+    public void testInvokeAllocated() throws Exception {
+        Path rootPath = this.root.toPath();
+        Files.write(rootPath.resolve("small"), new byte[1]);
+
+        // a sparse file allocates next to nothing
+        RandomAccessFile sparse = new RandomAccessFile(new File(this.root, "sparse"), "rw");
+        try {
+            sparse.setLength(10000000L);
+        } finally {
+            sparse.close();
+        }
+
+        long apparent = new WorkspaceSizeWalker(2).invoke(this.root, null);
+        long allocated = new WorkspaceSizeWalker(2, null, true).invoke(this.root, null);
+
+        assertTrue(apparent > 10000000L);
+        assertTrue(allocated < apparent);
+        assertEquals(0L, allocated % 1024L);
+    }
+
+    public void testParseDu() {
+        assertEquals(Long.valueOf(2048L), WorkspaceSizeWalker.parseDu("2\t/tmp/workspace"));
+        assertNull(WorkspaceSizeWalker.parseDu("du: cannot read directory"));
+        assertNull(WorkspaceSizeWalker.parseDu(null));
+    }
+}
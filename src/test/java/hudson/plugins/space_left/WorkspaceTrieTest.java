@@ -0,0 +1,93 @@
+package hudson.plugins.space_left;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Tests the resolution of nested workspaces to projects
+ */
+public class WorkspaceTrieTest extends TestCase {
+
+    private WorkspaceTrie.Node root;
+
+    @Override
+    protected void setUp() throws Exception {
+        Map<String, String> projects = new HashMap<String, String>();
+        projects.put("job", "job");
+        projects.put("folder/job", "folder/job");
+        projects.put("folder/sub/job", "folder/sub/job");
+        projects.put("matrix", "matrix");
+        projects.put("matrix/label/linux", "matrix/label=linux");
+        this.root = WorkspaceTrie.build(projects);
+    }
+
+    public void testResolve() {
+        assertEquals("job", WorkspaceTrie.resolve(this.root, "job"));
+        assertEquals("job", WorkspaceTrie.resolve(this.root, "job@2"));
+        assertEquals("folder/job", WorkspaceTrie.resolve(this.root, "folder/job"));
+        assertEquals("folder/job", WorkspaceTrie.resolve(this.root, "folder/job@3"));
+        assertEquals("folder/sub/job", WorkspaceTrie.resolve(this.root, "folder/sub/job"));
+        assertEquals("matrix", WorkspaceTrie.resolve(this.root, "matrix@2"));
+        assertEquals("matrix/label=linux", WorkspaceTrie.resolve(this.root, "matrix/label/linux"));
+        assertEquals("matrix/label=linux", WorkspaceTrie.resolve(this.root, "matrix@2/label/linux"));
+
+        // folders and unknown directories belong to no project
+        assertNull(WorkspaceTrie.resolve(this.root, "folder"));
+        assertNull(WorkspaceTrie.resolve(this.root, "matrix/label"));
+        assertNull(WorkspaceTrie.resolve(this.root, "other"));
+        assertNull(WorkspaceTrie.resolve(this.root, "folder/other"));
+        assertNull(WorkspaceTrie.resolve(this.root, ""));
+    }
+
+    public void testContainers() {
+        assertEquals(new HashSet<String>(Arrays.asList("folder", "folder/sub", "matrix", "matrix/label")),
+                this.root.getContainers());
+    }
+
+    public void testInvalidatedWhileBuilding() {
+        WorkspaceTrie trie = WorkspaceTrie.get();
+        Map<String, String> none = Collections.emptyMap();
+
+        long started = trie.getGeneration();
+        trie.invalidate();
+        assertFalse(trie.publish(new WorkspaceTrie.Snapshot(started, this.root, none)));
+
+        try {
+            assertTrue(trie.publish(new WorkspaceTrie.Snapshot(trie.getGeneration(), this.root, none)));
+        } finally {
+            // built from the items next time
+            trie.invalidate();
+        }
+    }
+
+    public void testProbeListsContainers() throws Exception {
+        File slaveRoot = Util.createTempDir();
+
+        try {
+            for (String path : new String[] {"job", "folder/job@2", "folder/job/src", "matrix@2/label/linux", "other/deep"}) {
+                assertTrue(new File(slaveRoot, SpaceProbe.DEFAULT_LOCATION + "/" + path).mkdirs());
+            }
+
+            SpaceProbe probe = new SpaceProbe(Collections.<String>emptyList(), this.root.getContainers());
+            Map<String, Long> workspaces = probe.measure(slaveRoot, true).getWorkspaces();
+
+            assertTrue(workspaces.containsKey("job"));
+            assertTrue(workspaces.containsKey("folder/job@2"));
+            assertTrue(workspaces.containsKey("matrix@2/label/linux"));
+            assertTrue(workspaces.containsKey("other"));
+
+            // only containers are listed
+            assertFalse(workspaces.containsKey("folder/job/src"));
+            assertFalse(workspaces.containsKey("other/deep"));
+        } finally {
+            Util.deleteRecursive(slaveRoot);
+        }
+    }
+}